@@ -0,0 +1,95 @@
+package org.sombrenuit.dk.kettleboy;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.ParcelUuid;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scans for the fe95 advertisements of the kettles registered with a {@link BeaconMonitor}.
+ * The filters match the registered macs, so the controller drops everything else before it
+ * wakes the app. Register the kettles before {@link #start}, the filters are built once.
+ */
+public class AndroidBeaconScanner
+{
+    private static final ParcelUuid SERVICE_AUTH = ParcelUuid.fromString(
+            String.format("0000%04x-0000-1000-8000-00805f9b34fb", KettleProtocol.UUID_SERVICE_AUTH));
+
+    private final BluetoothAdapter bluetoothAdapter;
+    private final BeaconMonitor monitor;
+    private final int scanMode;
+    private BluetoothLeScanner scanner;
+
+    private final ScanCallback callback = new ScanCallback()
+    {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result)
+        {
+            handle(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results)
+        {
+            for(ScanResult result : results)
+                handle(result);
+        }
+    };
+
+    public AndroidBeaconScanner(BluetoothAdapter bluetoothAdapter, BeaconMonitor monitor)
+    {
+        this(bluetoothAdapter, monitor, ScanSettings.SCAN_MODE_LOW_POWER);
+    }
+
+    /**
+     * @param scanMode one of the ScanSettings modes, low power is plenty for kettle temperatures
+     */
+    public AndroidBeaconScanner(BluetoothAdapter bluetoothAdapter, BeaconMonitor monitor, int scanMode)
+    {
+        this.bluetoothAdapter = bluetoothAdapter;
+        this.monitor = monitor;
+        this.scanMode = scanMode;
+    }
+
+    public synchronized boolean start()
+    {
+        if(scanner != null)
+            return true;
+        BluetoothLeScanner leScanner = bluetoothAdapter.getBluetoothLeScanner();
+        if(leScanner == null)
+            return false;
+
+        List<ScanFilter> filters = new ArrayList<>();
+        for(String mac : monitor.getMacs())
+            filters.add(new ScanFilter.Builder().setDeviceAddress(mac).setServiceData(SERVICE_AUTH, new byte[0]).build());
+        ScanSettings settings = new ScanSettings.Builder().setScanMode(scanMode).build();
+        leScanner.startScan(filters, settings, callback);
+        scanner = leScanner;
+        return true;
+    }
+
+    public synchronized void stop()
+    {
+        if(scanner == null)
+            return;
+        scanner.stopScan(callback);
+        scanner = null;
+    }
+
+    private void handle(ScanResult result)
+    {
+        ScanRecord record = result.getScanRecord();
+        if(record == null)
+            return;
+        byte[] serviceData = record.getServiceData(SERVICE_AUTH);
+        if(serviceData != null)
+            monitor.onServiceData(result.getDevice().getAddress(), serviceData, System.currentTimeMillis());
+    }
+}
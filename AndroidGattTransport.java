@@ -0,0 +1,296 @@
+package org.sombrenuit.dk.kettleboy;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+
+import java.util.List;
+
+public class AndroidGattTransport implements GattTransport
+{
+    private final Context ctx;
+    private final BluetoothAdapter bluetoothAdapter;
+    private final String mac;
+
+    private final GattAttributeIndex index;
+    //per connection attribute objects, by index slot
+    private final BluetoothGattCharacteristic[] characteristics = new BluetoothGattCharacteristic[GattAttributeIndex.CAPACITY];
+    private final BluetoothGattDescriptor[] notificationDescriptors = new BluetoothGattDescriptor[GattAttributeIndex.CAPACITY];
+    private final boolean[] services = new boolean[GattAttributeIndex.CAPACITY];
+
+    private BluetoothDevice device;
+    private BluetoothGatt gatt;
+
+    public AndroidGattTransport(Context ctx, BluetoothAdapter bluetoothAdapter, String mac)
+    {
+        this.ctx = ctx;
+        this.bluetoothAdapter = bluetoothAdapter;
+        this.mac = mac;
+        this.index = GattAttributeIndex.forMac(mac);
+    }
+
+    @Override
+    public String getAddress()
+    {
+        return mac;
+    }
+
+    BluetoothGatt getGatt()
+    {
+        return gatt;
+    }
+
+    @Override
+    public boolean connect(final Callback callback)
+    {
+        if(gatt != null)
+            gatt.close();
+
+        device = bluetoothAdapter.getRemoteDevice(mac);
+        gatt = device.connectGatt(ctx, true, new BluetoothGattCallback()
+        {
+            @Override
+            public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState)
+            {
+                super.onConnectionStateChange(gatt, status, newState);
+                callback.onConnectionStateChange(status, newState == 2);
+            }
+
+            @Override
+            public void onServicesDiscovered(BluetoothGatt gatt, int status)
+            {
+                super.onServicesDiscovered(gatt, status);
+                if(status == GATT_SUCCESS)
+                    bind(gatt);
+                callback.onServicesDiscovered(status);
+            }
+
+            @Override
+            public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status)
+            {
+                super.onCharacteristicRead(gatt, characteristic, status);
+                callback.onCharacteristicRead(KettleProtocol.shortUuid(characteristic.getService().getUuid()),
+                        KettleProtocol.shortUuid(characteristic.getUuid()), characteristic.getValue(), status);
+            }
+
+            @Override
+            public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status)
+            {
+                super.onCharacteristicWrite(gatt, characteristic, status);
+                callback.onCharacteristicWrite(KettleProtocol.shortUuid(characteristic.getService().getUuid()),
+                        KettleProtocol.shortUuid(characteristic.getUuid()), status);
+            }
+
+            @Override
+            public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic)
+            {
+                super.onCharacteristicChanged(gatt, characteristic);
+                callback.onCharacteristicChanged(KettleProtocol.shortUuid(characteristic.getService().getUuid()),
+                        KettleProtocol.shortUuid(characteristic.getUuid()), characteristic.getValue());
+            }
+
+            @Override
+            public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status)
+            {
+                super.onDescriptorWrite(gatt, descriptor, status);
+                BluetoothGattCharacteristic characteristic = descriptor.getCharacteristic();
+                callback.onDescriptorWrite(KettleProtocol.shortUuid(characteristic.getService().getUuid()),
+                        KettleProtocol.shortUuid(characteristic.getUuid()), KettleProtocol.shortUuid(descriptor.getUuid()), status);
+            }
+
+            @Override
+            public void onMtuChanged(BluetoothGatt gatt, int mtu, int status)
+            {
+                super.onMtuChanged(gatt, mtu, status);
+                callback.onMtuChanged(mtu, status);
+            }
+
+            @Override
+            public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status)
+            {
+                super.onPhyUpdate(gatt, txPhy, rxPhy, status);
+                callback.onPhyUpdate(txPhy, rxPhy, status);
+            }
+        });
+        return gatt != null;
+    }
+
+    @Override
+    public boolean discoverServices()
+    {
+        return gatt != null && gatt.discoverServices();
+    }
+
+    @Override
+    public boolean hasService(int service)
+    {
+        int slot = index.slot(service, 0);
+        return slot >= 0 && services[slot];
+    }
+
+    @Override
+    public boolean readCharacteristic(int service, int characteristic)
+    {
+        BluetoothGattCharacteristic c = findCharacteristic(service, characteristic);
+        return c != null && gatt.readCharacteristic(c);
+    }
+
+    @Override
+    public boolean writeCharacteristic(int service, int characteristic, byte[] value)
+    {
+        BluetoothGattCharacteristic c = findCharacteristic(service, characteristic);
+        if(c == null)
+            return false;
+        c.setValue(value);
+        return gatt.writeCharacteristic(c);
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(int service, int characteristic, boolean enable)
+    {
+        BluetoothGattCharacteristic c = findCharacteristic(service, characteristic);
+        return c != null && gatt.setCharacteristicNotification(c, enable);
+    }
+
+    @Override
+    public boolean writeDescriptor(int service, int characteristic, int descriptor, byte[] value)
+    {
+        BluetoothGattDescriptor d = null;
+        int slot = index.slot(service, characteristic);
+        if(slot < 0 || characteristics[slot] == null)
+            return false;
+        if(descriptor == KettleProtocol.UUID_NOTIFICATION_DESCRIPTOR)
+            d = notificationDescriptors[slot];
+        else
+        {
+            for(BluetoothGattDescriptor candidate : characteristics[slot].getDescriptors())
+            {
+                if(KettleProtocol.shortUuid(candidate.getUuid()) == descriptor)
+                    d = candidate;
+            }
+        }
+        if(d == null)
+            return false;
+        d.setValue(value);
+        return gatt.writeDescriptor(d);
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority)
+    {
+        return gatt != null && gatt.requestConnectionPriority(priority);
+    }
+
+    @Override
+    public boolean requestMtu(int mtu)
+    {
+        return gatt != null && gatt.requestMtu(mtu);
+    }
+
+    @Override
+    public boolean setPreferredPhy(int phys)
+    {
+        if(gatt == null)
+            return false;
+        gatt.setPreferredPhy(phys, phys, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        return true;
+    }
+
+    @Override
+    public void disconnect()
+    {
+        if(gatt != null)
+            gatt.disconnect();
+    }
+
+    @Override
+    public void close()
+    {
+        if(gatt != null)
+            gatt.close();
+        gatt = null;
+        unbind();
+    }
+
+    private BluetoothGattCharacteristic findCharacteristic(int service, int characteristic)
+    {
+        if(gatt == null)
+            return null;
+        int slot = index.slot(service, characteristic);
+        return slot < 0 ? null : characteristics[slot];
+    }
+
+    //One pass over the discovered services, after this every lookup is an index slot.
+    //A kettle whose handles no longer match the recorded layout, or whose firmware changed, gets its index rebuilt.
+    private void bind(BluetoothGatt gatt)
+    {
+        unbind();
+        if(index.isStale())
+            index.invalidate();
+        boolean reuse = index.isComplete();
+        int count = 0;
+        List<BluetoothGattService> discovered = gatt.getServices();
+        for(BluetoothGattService bgs : discovered)
+        {
+            int service = KettleProtocol.shortUuid(bgs.getUuid());
+            int slot = reuse ? index.slot(service, 0) : index.add(service, 0, bgs.getInstanceId());
+            if(slot < 0 || index.handle(slot) != bgs.getInstanceId())
+            {
+                relayout(gatt);
+                return;
+            }
+            services[slot] = true;
+            count++;
+
+            for(BluetoothGattCharacteristic c : bgs.getCharacteristics())
+            {
+                int characteristic = KettleProtocol.shortUuid(c.getUuid());
+                int charSlot = reuse ? index.slot(service, characteristic) : index.add(service, characteristic, c.getInstanceId());
+                if(charSlot < 0 || index.handle(charSlot) != c.getInstanceId())
+                {
+                    relayout(gatt);
+                    return;
+                }
+                characteristics[charSlot] = c;
+                count++;
+                for(BluetoothGattDescriptor d : c.getDescriptors())
+                {
+                    if(KettleProtocol.shortUuid(d.getUuid()) == KettleProtocol.UUID_NOTIFICATION_DESCRIPTOR)
+                        notificationDescriptors[charSlot] = d;
+                }
+            }
+        }
+
+        if(reuse && count != index.size())
+            relayout(gatt);
+        else
+            index.markComplete();
+    }
+
+    private void relayout(BluetoothGatt gatt)
+    {
+        if(!index.isComplete())
+        {
+            //the index could not hold this layout, lookups of what is missing fail
+            index.markComplete();
+            return;
+        }
+        index.invalidate();
+        bind(gatt);
+    }
+
+    private void unbind()
+    {
+        for(int i = 0; i < GattAttributeIndex.CAPACITY; i++)
+        {
+            characteristics[i] = null;
+            notificationDescriptors[i] = null;
+            services[i] = false;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package org.sombrenuit.dk.kettleboy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Turns the kettle's fe95 advertisements into status frames, without connecting.
+ * The beacon only carries the heater state and the current temperature, so it is laid over the
+ * last full frame the client knows: the temperature is replaced, and the action follows the heater
+ * (on turns an idle or cooling kettle to heating, off turns heating or keeping warm to idle).
+ * The result goes through {@link KettleClient#replay} to history, eta, cache and subscriptions,
+ * like a notification would. A client without any full frame yet is connected once to read one,
+ * that is the only time a connection is made.
+ * Kettles repeat each advertisement many times, a beacon with the same frame counter and payload
+ * as the last one is dropped. While a client streams over a live connection its beacons are ignored,
+ * the notifications are more complete.
+ * Parsing and de-duplication are plain java, the scanner feeds {@link #onServiceData}.
+ */
+public class BeaconMonitor
+{
+    public static final long DEFAULT_SEED_RETRY_MILLIS = 60000;
+
+    private static final class Watched
+    {
+        final KettleClient client;
+        int counter = -1;
+        int power = -1;
+        int temperature = -1;
+        volatile boolean seeding;
+        volatile long seedFailedAt;
+
+        Watched(KettleClient client)
+        {
+            this.client = client;
+        }
+    }
+
+    private final ConcurrentHashMap<Long, Watched> watched = new ConcurrentHashMap<>();
+    private final long seedRetryMillis;
+    //one parser for every advertisement, guarded by this
+    private final MiBeacon beacon = new MiBeacon();
+
+    private long accepted;
+    private long duplicates;
+    private long encrypted;
+    private long malformed;
+    private final AtomicLong seeds = new AtomicLong();
+
+    public BeaconMonitor()
+    {
+        this(DEFAULT_SEED_RETRY_MILLIS);
+    }
+
+    /**
+     * @param seedRetryMillis how long to wait after a failed seeding connection before trying again
+     */
+    public BeaconMonitor(long seedRetryMillis)
+    {
+        this.seedRetryMillis = seedRetryMillis;
+    }
+
+    public void register(KettleClient client)
+    {
+        watched.put(client.getMacKey(), new Watched(client));
+    }
+
+    public void unregister(KettleClient client)
+    {
+        watched.remove(client.getMacKey());
+    }
+
+    //Macs of the registered kettles, for the scan filters
+    public List<String> getMacs()
+    {
+        List<String> macs = new ArrayList<>();
+        for(Watched entry : watched.values())
+            macs.add(entry.client.getMac());
+        return macs;
+    }
+
+    public boolean onServiceData(String mac, byte[] serviceData, long time)
+    {
+        return onServiceData(StatusJournal.macKey(mac), serviceData, time);
+    }
+
+    /**
+     * One fe95 service data payload as scanned from mac.
+     * @return true when it was new and handed to the kettle's client
+     */
+    public boolean onServiceData(long mac, byte[] serviceData, long time)
+    {
+        Watched entry = watched.get(mac);
+        if(entry == null)
+            return false;
+
+        final int power;
+        final int temperature;
+        synchronized (this)
+        {
+            if(!MiBeacon.parse(serviceData, beacon))
+            {
+                malformed++;
+                return false;
+            }
+            if(beacon.isEncrypted())
+            {
+                encrypted++;
+                return false;
+            }
+            if(!beacon.hasKettleStatus())
+                return false;
+            power = beacon.getPower();
+            temperature = beacon.getTemperature();
+            if(beacon.getFrameCounter() == entry.counter && power == entry.power && temperature == entry.temperature)
+            {
+                duplicates++;
+                return false;
+            }
+            entry.counter = beacon.getFrameCounter();
+            entry.power = power;
+            entry.temperature = temperature;
+            accepted++;
+        }
+
+        final Watched target = entry;
+        final long at = time;
+        entry.client.getEventLoop().execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                apply(target, at, power, temperature);
+            }
+        });
+        return true;
+    }
+
+    public synchronized long getAccepted()
+    {
+        return accepted;
+    }
+
+    public synchronized long getDuplicates()
+    {
+        return duplicates;
+    }
+
+    public synchronized long getEncrypted()
+    {
+        return encrypted;
+    }
+
+    public synchronized long getMalformed()
+    {
+        return malformed;
+    }
+
+    //Connections made because a kettle had no full frame yet
+    public long getSeeds()
+    {
+        return seeds.get();
+    }
+
+    //Runs on the client's event loop
+    private void apply(Watched entry, long time, int power, int temperature)
+    {
+        KettleClient client = entry.client;
+        if(client.isAuthenticated() && client.getSubscriberCount() > 0)
+            return;
+        byte[] frame = client.getCache().getFrame();
+        if(frame == null)
+        {
+            seed(entry);
+            return;
+        }
+
+        int action = frame[0] & 0xff;
+        if(power != 0)
+        {
+            if(action == KettleStatus.Action.IDLE.code || action == KettleStatus.Action.COOLING.code)
+                action = KettleStatus.Action.HEATING.code;
+        }
+        else if(action == KettleStatus.Action.HEATING.code || action == KettleStatus.Action.KEEPING_WARM.code)
+            action = KettleStatus.Action.IDLE.code;
+        frame[0] = (byte) action;
+        frame[5] = (byte) temperature;
+        client.replay(time, frame);
+    }
+
+    private void seed(final Watched entry)
+    {
+        if(entry.seeding || System.currentTimeMillis() - entry.seedFailedAt < seedRetryMillis)
+            return;
+        entry.seeding = true;
+        seeds.incrementAndGet();
+        entry.client.status(false, new IOnComplete<KettleStatus>()
+        {
+            @Override
+            public void onComplete(KettleStatus val)
+            {
+                entry.seeding = false;
+                //the full frame is in the cache now, beacons take over from here
+                entry.client.closeIfUnused();
+            }
+
+            @Override
+            public void onError()
+            {
+                entry.seeding = false;
+                entry.seedFailedAt = System.currentTimeMillis();
+            }
+        });
+    }
+}
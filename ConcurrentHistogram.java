@@ -0,0 +1,101 @@
+package org.sombrenuit.dk.kettleboy;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram in the style of HdrHistogram: every power of two range is split into 16 linear
+ * sub buckets, so any recorded value is known within 1/16 (6%) over the whole long range.
+ * Recording is lock free and never allocates, any number of threads can record while others read.
+ * Readers see counts that may be a few records apart from each other, never torn values.
+ */
+public class ConcurrentHistogram
+{
+    private static final int SUB_BITS = 5;
+    private static final int HALF = 1 << (SUB_BITS - 1);
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * HALF + HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value)
+    {
+        if(value < 0)
+            value = 0;
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long seen = max.get();
+        while(value > seen && !max.compareAndSet(seen, value))
+            seen = max.get();
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    public double getMean()
+    {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    //Highest value of the sub bucket holding the given percentile (0-100), 0 when nothing was recorded
+    public long percentile(double percentile)
+    {
+        long total = 0;
+        for(int i = 0; i < BUCKETS; i++)
+            total += counts.get(i);
+        if(total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts.get(i);
+            if(seen >= rank)
+                return Math.min(max.get(), highest(i));
+        }
+        return max.get();
+    }
+
+    //Not atomic against concurrent recording, records made meanwhile may be partly kept
+    public void reset()
+    {
+        for(int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    //Values below 32 get an exact bucket each, above that the top 5 bits pick the sub bucket
+    static int index(long value)
+    {
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1));
+        return (shift << (SUB_BITS - 1)) + (int) (value >>> shift);
+    }
+
+    static long highest(int index)
+    {
+        if(index < 2 * HALF)
+            return index;
+        int shift = (index >>> (SUB_BITS - 1)) - 1;
+        long sub = index - (shift << (SUB_BITS - 1));
+        return ((sub + 1) << shift) - 1;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "count=" + getCount() + " p50=" + percentile(50) + " p99=" + percentile(99) + " max=" + getMax();
+    }
+}
@@ -0,0 +1,42 @@
+package org.sombrenuit.dk.kettleboy;
+
+/**
+ * Link parameters a {@link KettleClient} asks for during one stage of a session, see
+ * {@link KettleClient#setProfiles}. The handshake profile is requested as soon as the link is up and
+ * covers discovery and auth, the stream profile takes over once status frames flow, or right after
+ * auth for a session that does not stream.
+ * A high priority shortens the connection interval so each of the handshake's round trips is quicker,
+ * at the cost of radio time other links on the same adapter do not get. Balanced or low power leaves
+ * room for them while notifications only need a frame every second or so.
+ * mtu 0 and phys 0 leave those as they are. The kettle's frames fit the default 23 byte mtu, an
+ * exchange only costs the handshake a round trip, so the built in profiles do not ask for one.
+ */
+public final class ConnectionProfile
+{
+    public static final ConnectionProfile FAST_HANDSHAKE = new ConnectionProfile("fast handshake", GattTransport.PRIORITY_HIGH, 0,
+            GattTransport.PHY_LE_1M | GattTransport.PHY_LE_2M);
+    public static final ConnectionProfile STEADY_STREAM = new ConnectionProfile("steady stream", GattTransport.PRIORITY_BALANCED, 0, 0);
+    public static final ConnectionProfile LOW_POWER_STREAM = new ConnectionProfile("low power stream", GattTransport.PRIORITY_LOW_POWER, 0, 0);
+    //asks for nothing, the link keeps what the stack chose
+    public static final ConnectionProfile UNCHANGED = new ConnectionProfile("unchanged", -1, 0, 0);
+
+    public final String name;
+    //one of the GattTransport priorities, -1 to leave it
+    public final int priority;
+    public final int mtu;
+    public final int phys;
+
+    public ConnectionProfile(String name, int priority, int mtu, int phys)
+    {
+        this.name = name;
+        this.priority = priority;
+        this.mtu = mtu;
+        this.phys = phys;
+    }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+}
@@ -0,0 +1,67 @@
+package org.sombrenuit.dk.kettleboy;
+
+/**
+ * Settings a kettle should have, see {@link KettleReconciler}. Unset parts are left as they are.
+ * Instances are immutable, every with/for method returns a new one.
+ */
+public final class DesiredState
+{
+    public final KettleStatus.KeepWarmType keepWarmType;
+    //0 when the keep warm setup is not part of the target
+    public final int keepWarmTemperature;
+    //0 when not part of the target
+    public final int keepWarmMinutes;
+    //null when not part of the target
+    public final Boolean turnOffAfterBoil;
+
+    private DesiredState(KettleStatus.KeepWarmType keepWarmType, int keepWarmTemperature, int keepWarmMinutes, Boolean turnOffAfterBoil)
+    {
+        this.keepWarmType = keepWarmType;
+        this.keepWarmTemperature = keepWarmTemperature;
+        this.keepWarmMinutes = keepWarmMinutes;
+        this.turnOffAfterBoil = turnOffAfterBoil;
+    }
+
+    public static DesiredState keepWarm(KettleStatus.KeepWarmType type, int temperature)
+    {
+        //validated here, not on the first write
+        KettleProtocol.setupValue(type, temperature);
+        return new DesiredState(type, temperature, 0, null);
+    }
+
+    public static DesiredState none()
+    {
+        return new DesiredState(null, 0, 0, null);
+    }
+
+    public DesiredState forMinutes(int minutes)
+    {
+        KettleProtocol.timeValue(minutes);
+        return new DesiredState(keepWarmType, keepWarmTemperature, minutes, turnOffAfterBoil);
+    }
+
+    public DesiredState turnOffAfterBoil(boolean turnOff)
+    {
+        return new DesiredState(keepWarmType, keepWarmTemperature, keepWarmMinutes, turnOff);
+    }
+
+    public boolean hasKeepWarm()
+    {
+        return keepWarmType != null;
+    }
+
+    //The part of the target the status frame can confirm
+    public boolean matches(KettleStatus status)
+    {
+        return !hasKeepWarm() || (status.getKeepWarmTypeCode() == keepWarmType.code
+                && status.getSetTemperature() == keepWarmTemperature);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DesiredState{keep warm=" + (hasKeepWarm() ? keepWarmType.label + " " + keepWarmTemperature : "-")
+                + " minutes=" + (keepWarmMinutes > 0 ? keepWarmMinutes : "-")
+                + " turn off after boil=" + (turnOffAfterBoil != null ? turnOffAfterBoil : "-") + "}";
+    }
+}
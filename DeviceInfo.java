@@ -0,0 +1,60 @@
+package org.sombrenuit.dk.kettleboy;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What a kettle tells about itself: the hardware service strings and the protocol version read at the
+ * end of the handshake. Kept per mac for the life of the process, a kettle reporting another protocol
+ * version during a handshake drops its entry. Fields the kettle does not expose are null.
+ */
+public final class DeviceInfo
+{
+    private static final ConcurrentHashMap<String, DeviceInfo> BY_MAC = new ConcurrentHashMap<>();
+
+    public final String mac;
+    public final String name;
+    public final String firmware;
+    public final String mcuVersion;
+    public final String protocolVersion;
+    public final long readAt;
+
+    public DeviceInfo(String mac, String name, String firmware, String mcuVersion, String protocolVersion, long readAt)
+    {
+        this.mac = mac;
+        this.name = name;
+        this.firmware = firmware;
+        this.mcuVersion = mcuVersion;
+        this.protocolVersion = protocolVersion;
+        this.readAt = readAt;
+    }
+
+    public static DeviceInfo cached(String mac)
+    {
+        return BY_MAC.get(mac);
+    }
+
+    static void store(DeviceInfo info)
+    {
+        BY_MAC.put(info.mac, info);
+    }
+
+    //Called after each handshake, the cached info is stale once the kettle reports another version
+    static void checkVersion(String mac, String protocolVersion)
+    {
+        DeviceInfo info = BY_MAC.get(mac);
+        if(info != null && info.protocolVersion != null && !info.protocolVersion.equals(protocolVersion))
+            BY_MAC.remove(mac, info);
+    }
+
+    public static void clear(String mac)
+    {
+        BY_MAC.remove(mac);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DeviceInfo{" + mac + " name=" + name + " firmware=" + firmware + " mcu=" + mcuVersion
+                + " protocol=" + protocolVersion + "}";
+    }
+}
@@ -0,0 +1,37 @@
+package org.sombrenuit.dk.kettleboy;
+
+/**
+ * How a {@link DutyCycledSubscription} trades freshness for radio time. After idleGraceMillis of idle
+ * status frames the link is dropped and the kettle is sampled instead: connect, wait for one frame,
+ * disconnect. The first sample follows minIntervalMillis later, each idle sample after that waits
+ * multiplier times longer, up to maxIntervalMillis. A sample that gets no frame within
+ * sampleTimeoutMillis is given up and tried again after the same interval.
+ */
+public final class DutyCyclePolicy
+{
+    public static final DutyCyclePolicy DEFAULT = new DutyCyclePolicy(60000, 30000, 15 * 60000, 2, 20000);
+    //never lets go of the link, the same as a plain subscription
+    public static final DutyCyclePolicy CONTINUOUS = new DutyCyclePolicy(Long.MAX_VALUE, 0, 0, 1, 0);
+
+    public final long idleGraceMillis;
+    public final long minIntervalMillis;
+    public final long maxIntervalMillis;
+    public final double multiplier;
+    public final long sampleTimeoutMillis;
+
+    public DutyCyclePolicy(long idleGraceMillis, long minIntervalMillis, long maxIntervalMillis, double multiplier,
+                           long sampleTimeoutMillis)
+    {
+        this.idleGraceMillis = idleGraceMillis;
+        this.minIntervalMillis = minIntervalMillis;
+        this.maxIntervalMillis = maxIntervalMillis;
+        this.multiplier = multiplier;
+        this.sampleTimeoutMillis = sampleTimeoutMillis;
+    }
+
+    //Wait before the next sample, after idleSamples samples in a row found the kettle idle
+    public long interval(int idleSamples)
+    {
+        return (long) Math.min(maxIntervalMillis, minIntervalMillis * Math.pow(multiplier, idleSamples));
+    }
+}
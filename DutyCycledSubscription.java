@@ -0,0 +1,285 @@
+package org.sombrenuit.dk.kettleboy;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Status subscription that only holds the link while the kettle does something. While it is
+ * heating, cooling or keeping warm every frame is delivered as with {@link KettleClient#subscribe}.
+ * Once it stayed idle for the policy's grace time the link is dropped, and the kettle is sampled at
+ * growing intervals with a short connect, one frame, disconnect. A sample that finds it active
+ * keeps the link and goes back to continuous mode right away.
+ * Sampled frames go to the listener like any other, so it hears about an idle kettle only as often
+ * as it is sampled.
+ */
+public class DutyCycledSubscription
+{
+    public enum Mode
+    {
+        CONTINUOUS,
+        SLEEPING,
+        SAMPLING,
+        STOPPED
+    }
+
+    private final KettleClient client;
+    private final IOnData<byte[]> listener;
+    private final ScheduledExecutorService scheduler;
+    private final DutyCyclePolicy policy;
+
+    private Mode mode = Mode.STOPPED;
+    private StatusSubscription subscription;
+    //a new hold per subscription, frames still queued for an earlier one are ignored
+    private int hold;
+    private long idleSince;
+    private int idleSamples;
+    private ScheduledFuture<?> timer;
+
+    private long startedAt;
+    private long stoppedAt;
+    private long holdingSince;
+    private long heldMillis;
+    private long samples;
+    private long wakeups;
+
+    public DutyCycledSubscription(KettleClient client, IOnData<byte[]> listener)
+    {
+        this(client, listener, DutyCyclePolicy.DEFAULT, KettleScheduler.shared());
+    }
+
+    public DutyCycledSubscription(KettleClient client, IOnData<byte[]> listener, DutyCyclePolicy policy,
+                                  ScheduledExecutorService scheduler)
+    {
+        this.client = client;
+        this.listener = listener;
+        this.policy = policy;
+        this.scheduler = scheduler;
+    }
+
+    public void start()
+    {
+        int started;
+        synchronized (this)
+        {
+            if(mode != Mode.STOPPED)
+                return;
+            mode = Mode.CONTINUOUS;
+            startedAt = System.currentTimeMillis();
+            stoppedAt = 0;
+            idleSince = 0;
+            idleSamples = 0;
+            started = ++hold;
+        }
+        subscribe(started);
+    }
+
+    public void stop()
+    {
+        StatusSubscription stopped;
+        synchronized (this)
+        {
+            if(mode == Mode.STOPPED)
+                return;
+            mode = Mode.STOPPED;
+            stoppedAt = System.currentTimeMillis();
+            cancelTimer();
+            stopped = endHold(stoppedAt);
+        }
+        if(stopped != null)
+            release(stopped);
+    }
+
+    //Goes back to continuous mode now, for when activity is known some other way, e.g. after a command
+    public void wake()
+    {
+        int woken;
+        synchronized (this)
+        {
+            if(mode != Mode.SLEEPING)
+                return;
+            cancelTimer();
+            mode = Mode.CONTINUOUS;
+            idleSince = 0;
+            idleSamples = 0;
+            wakeups++;
+            woken = ++hold;
+        }
+        subscribe(woken);
+    }
+
+    public synchronized Mode getMode()
+    {
+        return mode;
+    }
+
+    //Share of the time since start the link was held, 1 for a kettle that was never idle
+    public synchronized double getDutyCycle()
+    {
+        long now = stoppedAt > 0 ? stoppedAt : System.currentTimeMillis();
+        long total = now - startedAt;
+        if(startedAt == 0 || total <= 0)
+            return 0;
+        long held = heldMillis + (holdingSince > 0 ? now - holdingSince : 0);
+        return Math.min(1, (double) held / total);
+    }
+
+    //Samples taken while the kettle was idle
+    public synchronized long getSamples()
+    {
+        return samples;
+    }
+
+    //Times a sample or wake() brought back continuous mode
+    public synchronized long getWakeups()
+    {
+        return wakeups;
+    }
+
+    private void subscribe(final int current)
+    {
+        StatusSubscription started = client.subscribe(new IOnData<byte[]>()
+        {
+            @Override
+            public void onData(byte[] val)
+            {
+                onFrame(current, val);
+            }
+        }, KettleScheduler.listeners(), StatusSubscription.DEFAULT_CAPACITY, StatusSubscription.Overflow.DROP_OLDEST);
+
+        boolean cancel = false;
+        synchronized (this)
+        {
+            if(hold != current || subscription != null)
+                cancel = true;
+            else
+            {
+                subscription = started;
+                holdingSince = System.currentTimeMillis();
+            }
+        }
+        //the hold ended before the subscription was even returned
+        if(cancel)
+            release(started);
+    }
+
+    private void onFrame(int current, byte[] frame)
+    {
+        boolean active = (frame[0] & 0xff) != KettleStatus.Action.IDLE.code;
+        StatusSubscription released = null;
+        synchronized (this)
+        {
+            if(hold != current || (mode != Mode.CONTINUOUS && mode != Mode.SAMPLING))
+                return;
+            long now = System.currentTimeMillis();
+            if(active)
+            {
+                idleSince = 0;
+                idleSamples = 0;
+                if(mode == Mode.SAMPLING)
+                {
+                    cancelTimer();
+                    mode = Mode.CONTINUOUS;
+                    wakeups++;
+                }
+            }
+            else if(mode == Mode.SAMPLING)
+            {
+                cancelTimer();
+                released = endHold(now);
+                idleSamples++;
+                sleep();
+            }
+            else if(idleSince == 0)
+                idleSince = now;
+            else if(now - idleSince >= policy.idleGraceMillis)
+            {
+                released = endHold(now);
+                sleep();
+            }
+        }
+
+        listener.onData(frame);
+        if(released != null)
+            release(released);
+    }
+
+    private void sample()
+    {
+        final int current;
+        synchronized (this)
+        {
+            timer = null;
+            if(mode != Mode.SLEEPING)
+                return;
+            mode = Mode.SAMPLING;
+            samples++;
+            current = ++hold;
+            timer = scheduler.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    sampleTimedOut(current);
+                }
+            }, policy.sampleTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        subscribe(current);
+    }
+
+    private void sampleTimedOut(int current)
+    {
+        StatusSubscription released;
+        synchronized (this)
+        {
+            timer = null;
+            if(mode != Mode.SAMPLING || hold != current)
+                return;
+            released = endHold(System.currentTimeMillis());
+            sleep();
+        }
+        if(released != null)
+            release(released);
+    }
+
+    //Called with the lock held
+    private void sleep()
+    {
+        mode = Mode.SLEEPING;
+        timer = scheduler.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                sample();
+            }
+        }, policy.interval(idleSamples), TimeUnit.MILLISECONDS);
+    }
+
+    //Called with the lock held, frames of the ended hold are ignored from now on
+    private StatusSubscription endHold(long now)
+    {
+        hold++;
+        if(holdingSince > 0)
+            heldMillis += now - holdingSince;
+        holdingSince = 0;
+        StatusSubscription ended = subscription;
+        subscription = null;
+        return ended;
+    }
+
+    private void release(StatusSubscription released)
+    {
+        released.cancel();
+        //the point is to free the radio, not to keep the session around for the idle timeout. The close
+        //runs on the client's loop after the cancel, and also gives up a session a sample is still opening.
+        client.closeIfUnused();
+    }
+
+    private void cancelTimer()
+    {
+        if(timer != null)
+            timer.cancel(false);
+        timer = null;
+    }
+}
@@ -0,0 +1,204 @@
+package org.sombrenuit.dk.kettleboy;
+
+/**
+ * Estimates when a heating kettle reaches its target, or a cooling one its keep warm temperature.
+ * Every new whole degree gives a rate sample, and a linear fit of rate over temperature, weighted
+ * towards the last degrees, gives the time to the target in closed form. Constant work per frame,
+ * no allocation. The fit starts over when the kettle changes between heating, cooling and idle.
+ */
+public class EtaEstimator
+{
+    //rate samples are weighed by how many degrees ago they were taken
+    public static final int DEFAULT_HALF_LIFE_DEGREES = 15;
+    public static final int BOIL_TEMPERATURE = 100;
+    //rate samples before the confidence can reach 1
+    public static final int CONFIDENT_SAMPLES = 8;
+    //typical size of b, per second: heat losses and cooling of a full kettle are in the order of 1 / 1000s
+    private static final double CURVATURE_PRIOR = 0.003;
+
+    private final double decay;
+
+    //action being fitted: HEATING, COOLING or -1 when no estimate is possible
+    private int phase = -1;
+    //highest reading while heating, lowest while cooling, and when it was reached
+    private int lastTemperature;
+    private long lastChange;
+    private boolean changed;
+    private int samples;
+    //weighted sums of x = temperature, y = degrees per second
+    private double sw;
+    private double sx;
+    private double sy;
+    private double sxx;
+    private double sxy;
+    private double syy;
+
+    private long estimatedAt;
+    private long etaMillis = -1;
+    private double confidence;
+    private int target;
+
+    public EtaEstimator()
+    {
+        this(DEFAULT_HALF_LIFE_DEGREES);
+    }
+
+    public EtaEstimator(int halfLifeDegrees)
+    {
+        this.decay = Math.pow(0.5, 1.0 / halfLifeDegrees);
+    }
+
+    //Folds in a raw status frame, called with the frames in arrival order
+    public synchronized void update(long time, byte[] frame)
+    {
+        if(frame == null || frame.length < KettleStatus.FRAME_LENGTH)
+            return;
+        int action = frame[0] & 0xff;
+        int mode = frame[1] & 0xff;
+        int temperature = frame[5] & 0xff;
+
+        estimatedAt = time;
+        if(action != KettleStatus.Action.HEATING.code && action != KettleStatus.Action.COOLING.code)
+        {
+            reset();
+            return;
+        }
+        boolean heating = action == KettleStatus.Action.HEATING.code;
+        target = heating && mode == KettleStatus.Mode.BOIL.code ? BOIL_TEMPERATURE : frame[4] & 0xff;
+        if(action != phase || time < lastChange)
+            restart(action, time, temperature);
+        else if(heating ? temperature > lastTemperature : temperature < lastTemperature)
+        {
+            //only new highs while heating and new lows while cooling count, a flickering reading adds nothing
+            //the first change only tells where a degree starts
+            if(changed && time > lastChange)
+                sample((lastTemperature + temperature) / 2.0, (temperature - lastTemperature) * 1000.0 / (time - lastChange));
+            changed = true;
+            lastTemperature = temperature;
+            lastChange = time;
+        }
+
+        if(heating ? temperature >= target : temperature <= target)
+        {
+            etaMillis = 0;
+            confidence = 1;
+            return;
+        }
+        estimate(time, temperature, heating);
+    }
+
+    public synchronized void reset()
+    {
+        phase = -1;
+        etaMillis = -1;
+        confidence = 0;
+    }
+
+    //Ms until the target temperature from the last frame, 0 once reached, -1 when unknown
+    public synchronized long getEtaMillis()
+    {
+        return etaMillis;
+    }
+
+    //Ms left at the given time, counting down between frames
+    public synchronized long remainingMillis(long now)
+    {
+        if(etaMillis <= 0)
+            return etaMillis;
+        return Math.max(0, etaMillis - (now - estimatedAt));
+    }
+
+    //0 to 1, how closely the recent rate samples follow the fitted curve, lower while few were seen
+    public synchronized double getConfidence()
+    {
+        return confidence;
+    }
+
+    public synchronized int getTargetTemperature()
+    {
+        return target;
+    }
+
+    //Time of the frame the estimate is based on
+    public synchronized long getEstimatedAt()
+    {
+        return estimatedAt;
+    }
+
+    private void sample(double x, double y)
+    {
+        sw = sw * decay + 1;
+        sx = sx * decay + x;
+        sy = sy * decay + y;
+        sxx = sxx * decay + x * x;
+        sxy = sxy * decay + x * y;
+        syy = syy * decay + y * y;
+        samples++;
+    }
+
+    private void estimate(long time, int temperature, boolean heating)
+    {
+        if(samples == 0)
+        {
+            etaMillis = -1;
+            confidence = 0;
+            return;
+        }
+        double vxx = sxx - sx * sx / sw;
+        double vxy = sxy - sx * sy / sw;
+        double vyy = syy - sy * sy / sw;
+        //the curvature is pulled towards 0 as far as the noise of the rates leaves it unsure, a few noisy
+        //degrees fit a straight line, a clean cooling curve keeps its bend
+        double noise = vxx > 0 ? Math.max(0, vyy - vxy * vxy / vxx) / sw : vyy / sw;
+        double b = vxy / (vxx + noise / (CURVATURE_PRIOR * CURVATURE_PRIOR) + 1e-12);
+        double a = (sy - b * sx) / sw;
+        double rate = a + b * temperature;
+        //no degree for a while caps the rate, the curve may have flattened since the last sample
+        long stalled = time - lastChange;
+        boolean capped = stalled > 0 && Math.abs(rate) * stalled > 1000;
+        if(capped)
+            rate = (heating ? 1000.0 : -1000.0) / stalled;
+        if(heating ? rate <= 0 : rate >= 0)
+        {
+            etaMillis = -1;
+            confidence = 0;
+            return;
+        }
+
+        double seconds;
+        double level = b < 0 ? -a / b : 0;
+        if(!capped && b < -1e-6 && (heating ? target < level : target > level))
+        {
+            //exponential approach to the level where heating and losses balance, or to the room temperature
+            seconds = Math.log((temperature - level) / (target - level)) / -b;
+        }
+        else
+            seconds = (target - temperature) / rate;
+        if(Double.isNaN(seconds) || seconds < 0)
+        {
+            etaMillis = -1;
+            confidence = 0;
+            return;
+        }
+        etaMillis = (long) (seconds * 1000);
+
+        double error = Math.sqrt(Math.max(0, vyy - 2 * b * vxy + b * b * vxx) / sw);
+        double fit = Math.max(0, 1 - error / Math.abs(rate));
+        confidence = fit * Math.min(1, (double) samples / CONFIDENT_SAMPLES);
+    }
+
+    private void restart(int action, long time, int temperature)
+    {
+        phase = action;
+        lastTemperature = temperature;
+        lastChange = time;
+        changed = false;
+        samples = 0;
+        sw = 0;
+        sx = 0;
+        sy = 0;
+        sxx = 0;
+        sxy = 0;
+        syy = 0;
+    }
+}
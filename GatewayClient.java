@@ -0,0 +1,179 @@
+package org.sombrenuit.dk.kettleboy;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Blocking client of a {@link KettleGateway}, for services that want kettle status without a
+ * bluetooth link of their own. Not thread safe, use one per thread or guard it.
+ * Pushed frames that arrive while waiting for a reply are kept for {@link #next()}.
+ */
+public class GatewayClient implements Closeable
+{
+    public static final class Status
+    {
+        public final String mac;
+        //when the gateway got the frame, in its clock
+        public final long time;
+        public final byte[] frame;
+        //ms until the target temperature as of time, -1 when unknown, and 0 to 1 how sure it is
+        public final long etaMillis;
+        public final double etaConfidence;
+
+        Status(String mac, long time, byte[] frame, long etaMillis, double etaConfidence)
+        {
+            this.mac = mac;
+            this.time = time;
+            this.frame = frame;
+            this.etaMillis = etaMillis;
+            this.etaConfidence = etaConfidence;
+        }
+
+        public KettleStatus decode()
+        {
+            KettleStatus status = KettleStatus.decode(frame);
+            status.setEta(etaMillis, etaConfidence);
+            return status;
+        }
+
+        @Override
+        public String toString()
+        {
+            return mac + " " + decode();
+        }
+    }
+
+    private final SocketChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocate(GatewayProtocol.HEADER_SIZE);
+    private final ArrayDeque<Status> pushed = new ArrayDeque<>();
+
+    public GatewayClient(SocketAddress address) throws IOException
+    {
+        channel = SocketChannel.open(address);
+        channel.socket().setTcpNoDelay(true);
+    }
+
+    public List<String> list() throws IOException, KettleException
+    {
+        send(new byte[]{GatewayProtocol.LIST, 0, 0});
+        while(true)
+        {
+            ByteBuffer body = receive();
+            if(header.get(0) == (byte) GatewayProtocol.STATUS)
+                pushed.addLast(status(body));
+            if(header.get(0) != (byte) GatewayProtocol.KETTLES)
+                continue;
+            List<String> macs = new ArrayList<>();
+            while(body.remaining() >= GatewayProtocol.MAC_SIZE)
+                macs.add(StatusJournal.macString(GatewayProtocol.getMac(body)));
+            return macs;
+        }
+    }
+
+    /**
+     * The kettle's status, from the gateway's cache while it is fresh. On a connection subscribed to
+     * the same kettle a push can come first and answer it, it is just as recent.
+     */
+    public Status snapshot(String mac) throws IOException, KettleException
+    {
+        long key = StatusJournal.macKey(mac);
+        String wanted = StatusJournal.macString(key);
+        send(GatewayProtocol.request(GatewayProtocol.SNAPSHOT, key));
+        while(true)
+        {
+            Status status = receiveStatus();
+            if(status.mac.equals(wanted))
+                return status;
+            pushed.addLast(status);
+        }
+    }
+
+    //Every new frame of the kettle comes through next() from now on, starting with the latest known one
+    public void subscribe(String mac) throws IOException
+    {
+        send(GatewayProtocol.request(GatewayProtocol.SUBSCRIBE, StatusJournal.macKey(mac)));
+    }
+
+    public void unsubscribe(String mac) throws IOException
+    {
+        send(GatewayProtocol.request(GatewayProtocol.UNSUBSCRIBE, StatusJournal.macKey(mac)));
+    }
+
+    //Blocks for the next pushed status
+    public Status next() throws IOException, KettleException
+    {
+        Status status = pushed.pollFirst();
+        return status != null ? status : receiveStatus();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    private Status receiveStatus() throws IOException, KettleException
+    {
+        while(true)
+        {
+            ByteBuffer body = receive();
+            if(header.get(0) == (byte) GatewayProtocol.STATUS)
+                return status(body);
+        }
+    }
+
+    private static Status status(ByteBuffer body)
+    {
+        String mac = StatusJournal.macString(GatewayProtocol.getMac(body));
+        long time = body.getLong();
+        byte[] frame = new byte[KettleStatus.FRAME_LENGTH];
+        body.get(frame);
+        long eta = body.getInt();
+        double confidence = (body.get() & 0xff) / 100.0;
+        return new Status(mac, time, frame, eta, confidence);
+    }
+
+    //Reads one message into header and returns its body, errors are thrown
+    private ByteBuffer receive() throws IOException, KettleException
+    {
+        header.clear();
+        fill(header);
+        ByteBuffer body = ByteBuffer.allocate(header.getShort(1) & 0xffff);
+        fill(body);
+        body.flip();
+        if(header.get(0) == (byte) GatewayProtocol.ERROR)
+        {
+            String mac = StatusJournal.macString(GatewayProtocol.getMac(body));
+            int code = body.get() & 0xff;
+            if(code == GatewayProtocol.ERROR_UNKNOWN_KETTLE)
+                throw new KettleException(mac, "The gateway does not serve %s");
+            if(code == GatewayProtocol.ERROR_UNAVAILABLE)
+                throw new KettleException(mac, "The gateway could not read the status of %s");
+            throw new KettleException(mac, "The gateway refused a request for %s");
+        }
+        return body;
+    }
+
+    private void fill(ByteBuffer buffer) throws IOException
+    {
+        while(buffer.hasRemaining())
+        {
+            if(channel.read(buffer) < 0)
+                throw new EOFException("The gateway closed the connection");
+        }
+    }
+
+    private void send(byte[] message) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        while(buffer.hasRemaining())
+            channel.write(buffer);
+    }
+}
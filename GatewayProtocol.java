@@ -0,0 +1,95 @@
+package org.sombrenuit.dk.kettleboy;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary framing between a {@link KettleGateway} and its clients. Every message is a type byte,
+ * a 2 byte big endian body length and the body. Macs travel as 6 bytes, most significant first.
+ * Requests: LIST (no body), SNAPSHOT, SUBSCRIBE and UNSUBSCRIBE (mac).
+ * Replies: KETTLES (macs), STATUS (mac, 8 byte millis of the frame, the 9 byte aa02 frame, 4 byte
+ * eta in ms as of the frame, -1 when unknown, and its confidence in percent) and ERROR (mac, error
+ * code). STATUS answers a SNAPSHOT and is pushed to subscribers on every new frame.
+ */
+public final class GatewayProtocol
+{
+    public static final int HEADER_SIZE = 3;
+    public static final int MAC_SIZE = 6;
+    //largest body a request may have, anything longer closes the connection
+    public static final int MAX_REQUEST_BODY = MAC_SIZE;
+
+    public static final int LIST = 0x01;
+    public static final int SNAPSHOT = 0x02;
+    public static final int SUBSCRIBE = 0x03;
+    public static final int UNSUBSCRIBE = 0x04;
+
+    public static final int KETTLES = 0x81;
+    public static final int STATUS = 0x82;
+    public static final int ERROR = 0x8f;
+
+    public static final int STATUS_SIZE = HEADER_SIZE + MAC_SIZE + 8 + KettleStatus.FRAME_LENGTH + 4 + 1;
+
+    public static final int ERROR_UNKNOWN_KETTLE = 1;
+    public static final int ERROR_UNAVAILABLE = 2;
+    public static final int ERROR_BAD_REQUEST = 3;
+
+    private GatewayProtocol()
+    {
+    }
+
+    public static byte[] request(int type, long mac)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + MAC_SIZE);
+        buffer.put((byte) type).putShort((short) MAC_SIZE);
+        putMac(buffer, mac);
+        return buffer.array();
+    }
+
+    public static byte[] status(long mac, long time, byte[] frame)
+    {
+        return status(mac, time, frame, -1, 0);
+    }
+
+    public static byte[] status(long mac, long time, byte[] frame, long etaMillis, double etaConfidence)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(STATUS_SIZE);
+        buffer.put((byte) STATUS).putShort((short) (STATUS_SIZE - HEADER_SIZE));
+        putMac(buffer, mac);
+        buffer.putLong(time);
+        buffer.put(frame, 0, KettleStatus.FRAME_LENGTH);
+        buffer.putInt((int) Math.min(Integer.MAX_VALUE, etaMillis));
+        buffer.put((byte) Math.round(etaConfidence * 100));
+        return buffer.array();
+    }
+
+    public static byte[] error(long mac, int code)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + MAC_SIZE + 1);
+        buffer.put((byte) ERROR).putShort((short) (MAC_SIZE + 1));
+        putMac(buffer, mac);
+        buffer.put((byte) code);
+        return buffer.array();
+    }
+
+    public static byte[] kettles(long[] macs)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + macs.length * MAC_SIZE);
+        buffer.put((byte) KETTLES).putShort((short) (macs.length * MAC_SIZE));
+        for(long mac : macs)
+            putMac(buffer, mac);
+        return buffer.array();
+    }
+
+    public static void putMac(ByteBuffer buffer, long mac)
+    {
+        for(int shift = 40; shift >= 0; shift -= 8)
+            buffer.put((byte) (mac >>> shift));
+    }
+
+    public static long getMac(ByteBuffer buffer)
+    {
+        long mac = 0;
+        for(int i = 0; i < MAC_SIZE; i++)
+            mac = (mac << 8) | (buffer.get() & 0xff);
+        return mac;
+    }
+}
@@ -0,0 +1,183 @@
+package org.sombrenuit.dk.kettleboy;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Discovered attribute layout of one kettle, keyed by 16 bit short uuids.
+ * Every (service, characteristic) pair gets a fixed slot, so a transport can keep its per connection
+ * attribute objects in plain arrays and look them up without hashing objects or parsing uuids.
+ * Services are stored with characteristic 0. The layout is kept per mac for the life of the process
+ * and dropped when the attribute handles or the firmware revision (2a26) change. A new revision
+ * only marks the layout stale, the connection that read it keeps its lookups and the next bind
+ * rebuilds the layout. Lookups take no lock, every change publishes a new table.
+ */
+public final class GattAttributeIndex
+{
+    //power of two, a kettle exposes about 15 attributes
+    public static final int CAPACITY = 64;
+
+    private static final ConcurrentHashMap<String, GattAttributeIndex> BY_MAC = new ConcurrentHashMap<>();
+
+    //Never changed once published, writers copy it, so lookups read one consistent table without a lock
+    private static final class Table
+    {
+        final int[] keys;
+        final int[] handles;
+        final int size;
+        final boolean complete;
+
+        Table(int[] keys, int[] handles, int size, boolean complete)
+        {
+            this.keys = keys;
+            this.handles = handles;
+            this.size = size;
+            this.complete = complete;
+        }
+    }
+
+    private static final Table EMPTY = new Table(new int[CAPACITY], new int[CAPACITY], 0, false);
+
+    private final String mac;
+    private volatile Table table = EMPTY;
+    private volatile String firmware;
+    //set by a firmware change, the table is only dropped by the next bind
+    private volatile boolean stale;
+
+    private GattAttributeIndex(String mac)
+    {
+        this.mac = mac;
+    }
+
+    public static GattAttributeIndex forMac(String mac)
+    {
+        GattAttributeIndex index = BY_MAC.get(mac);
+        if(index == null)
+        {
+            GattAttributeIndex created = new GattAttributeIndex(mac);
+            index = BY_MAC.putIfAbsent(mac, created);
+            if(index == null)
+                index = created;
+        }
+        return index;
+    }
+
+    public String getMac()
+    {
+        return mac;
+    }
+
+    //True once a full discovery was recorded and not invalidated since
+    public boolean isComplete()
+    {
+        return table.complete;
+    }
+
+    public int size()
+    {
+        return table.size;
+    }
+
+    //Firmware revision last read from the 2a26 characteristic, null before one was
+    public String getFirmware()
+    {
+        return firmware;
+    }
+
+    //Records the firmware revision read from the kettle, a different one than before marks the layout stale
+    public synchronized boolean setFirmware(String revision)
+    {
+        String previous = firmware;
+        firmware = revision;
+        if(previous != null && !previous.equals(revision))
+        {
+            stale = true;
+            return true;
+        }
+        return false;
+    }
+
+    //True after a firmware change until the layout was dropped
+    public boolean isStale()
+    {
+        return stale;
+    }
+
+    //Only for a transport about to bind, a bound connection would lose its lookups
+    public synchronized void invalidate()
+    {
+        stale = false;
+        table = EMPTY;
+    }
+
+    synchronized void markComplete()
+    {
+        Table current = table;
+        table = new Table(current.keys, current.handles, current.size, true);
+    }
+
+    //Returns the slot of the attribute, -1 when the index is full
+    synchronized int add(int service, int characteristic, int handle)
+    {
+        Table current = table;
+        int key = key(service, characteristic);
+        int mask = CAPACITY - 1;
+        int i = mix(key) & mask;
+        for(int probe = 0; probe < CAPACITY; probe++)
+        {
+            if(current.keys[i] == key)
+            {
+                int[] handles = current.handles.clone();
+                handles[i] = handle;
+                table = new Table(current.keys, handles, current.size, current.complete);
+                return i;
+            }
+            if(current.keys[i] == 0)
+            {
+                int[] keys = current.keys.clone();
+                int[] handles = current.handles.clone();
+                keys[i] = key;
+                handles[i] = handle;
+                table = new Table(keys, handles, current.size + 1, current.complete);
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    //Returns the slot of the attribute, -1 when it is not indexed
+    int slot(int service, int characteristic)
+    {
+        int[] keys = table.keys;
+        int key = key(service, characteristic);
+        int mask = CAPACITY - 1;
+        int i = mix(key) & mask;
+        for(int probe = 0; probe < CAPACITY; probe++)
+        {
+            int k = keys[i];
+            if(k == key)
+                return i;
+            if(k == 0)
+                return -1;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    int handle(int slot)
+    {
+        return table.handles[slot];
+    }
+
+    //service short uuids are never 0, so a key is never 0 either
+    private static int key(int service, int characteristic)
+    {
+        return (service << 16) | (characteristic & 0xffff);
+    }
+
+    private static int mix(int key)
+    {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,105 @@
+package org.sombrenuit.dk.kettleboy;
+
+/**
+ * One queued GATT request, see {@link GattOperationQueue}.
+ * AWAIT_NOTIFY does not touch the radio, it completes with the next notification of the characteristic.
+ */
+final class GattOperation
+{
+    enum Type
+    {
+        READ,
+        WRITE,
+        WRITE_DESCRIPTOR,
+        ENABLE_NOTIFY,
+        AWAIT_NOTIFY,
+        REQUEST_MTU
+    }
+
+    final Type type;
+    final int service;
+    final int characteristic;
+    final int descriptor;
+    //a pending write can still get a newer value, see GattOperationQueue.replaceValue
+    byte[] value;
+    final IOnComplete<byte[]> onComplete;
+
+    long timeoutMillis = -1;
+    boolean retry = true;
+    int sequence;
+    int attempts;
+    byte[] notified;
+    volatile boolean cancelled;
+
+    private GattOperation(Type type, int service, int characteristic, int descriptor, byte[] value, IOnComplete<byte[]> onComplete)
+    {
+        this.type = type;
+        this.service = service;
+        this.characteristic = characteristic;
+        this.descriptor = descriptor;
+        this.value = value;
+        this.onComplete = onComplete;
+    }
+
+    static GattOperation read(int service, int characteristic, IOnComplete<byte[]> onComplete)
+    {
+        return new GattOperation(Type.READ, service, characteristic, 0, null, onComplete);
+    }
+
+    static GattOperation write(int service, int characteristic, byte[] value, IOnComplete<byte[]> onComplete)
+    {
+        return new GattOperation(Type.WRITE, service, characteristic, 0, value, onComplete);
+    }
+
+    static GattOperation writeDescriptor(int service, int characteristic, int descriptor, byte[] value, IOnComplete<byte[]> onComplete)
+    {
+        return new GattOperation(Type.WRITE_DESCRIPTOR, service, characteristic, descriptor, value, onComplete);
+    }
+
+    static GattOperation enableNotify(int service, int characteristic, IOnComplete<byte[]> onComplete)
+    {
+        return new GattOperation(Type.ENABLE_NOTIFY, service, characteristic, KettleProtocol.UUID_NOTIFICATION_DESCRIPTOR,
+                KettleProtocol._SUBSCRIBE_TRUE, onComplete);
+    }
+
+    static GattOperation awaitNotify(int service, int characteristic, IOnComplete<byte[]> onComplete)
+    {
+        return new GattOperation(Type.AWAIT_NOTIFY, service, characteristic, 0, null, onComplete);
+    }
+
+    //The exchange addresses no attribute, the mtu travels in the descriptor slot
+    static GattOperation requestMtu(int mtu, IOnComplete<byte[]> onComplete)
+    {
+        return new GattOperation(Type.REQUEST_MTU, 0, 0, mtu, null, onComplete);
+    }
+
+    GattOperation timeout(long millis)
+    {
+        this.timeoutMillis = millis;
+        return this;
+    }
+
+    //Fails on the first timeout or error, for steps the caller retries as a whole
+    GattOperation noRetry()
+    {
+        this.retry = false;
+        return this;
+    }
+
+    //a notification can only be waited for, sending the request again would not produce a second one
+    boolean retryable()
+    {
+        return retry && type != Type.AWAIT_NOTIFY;
+    }
+
+    boolean matches(int service, int characteristic)
+    {
+        return this.service == service && this.characteristic == characteristic;
+    }
+
+    @Override
+    public String toString()
+    {
+        return type + " " + Integer.toHexString(service) + "/" + Integer.toHexString(characteristic);
+    }
+}
@@ -0,0 +1,381 @@
+package org.sombrenuit.dk.kettleboy;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs GATT operations one at a time, the android stack only allows a single outstanding request.
+ * The next operation is started from the callback of the previous one. Each operation has a deadline,
+ * on timeout or error it is sent again up to {@code retries} times, after that it fails together with
+ * the rest of the sequence it was enqueued with.
+ * User callbacks are never called while the queue lock is held.
+ */
+class GattOperationQueue
+{
+    private final GattTransport transport;
+    private final ScheduledExecutorService scheduler;
+    //timeouts and retries are handled here, the same loop the transport callbacks arrive on
+    private final Executor loop;
+    private final long timeoutMillis;
+    private final int retries;
+
+    private final ArrayDeque<GattOperation> pending = new ArrayDeque<>();
+    private GattOperation current;
+    private ScheduledFuture<?> deadline;
+    private int sequences;
+    private volatile KettleMetrics metrics;
+
+    GattOperationQueue(GattTransport transport, ScheduledExecutorService scheduler, Executor loop, long timeoutMillis, int retries)
+    {
+        this.transport = transport;
+        this.scheduler = scheduler;
+        this.loop = loop;
+        this.timeoutMillis = timeoutMillis;
+        this.retries = retries;
+    }
+
+    //Operations passed in one call form a sequence, if one fails the ones after it are not run
+    void enqueue(GattOperation... operations)
+    {
+        synchronized (this)
+        {
+            int sequence = ++sequences;
+            for(GattOperation operation : operations)
+            {
+                operation.sequence = sequence;
+                if(operation.timeoutMillis < 0)
+                    operation.timeoutMillis = timeoutMillis;
+                pending.add(operation);
+            }
+        }
+        next();
+    }
+
+    void setMetrics(KettleMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    synchronized boolean isIdle()
+    {
+        return current == null && pending.isEmpty();
+    }
+
+    synchronized int size()
+    {
+        return pending.size() + (current != null ? 1 : 0);
+    }
+
+    void onCharacteristicRead(int service, int characteristic, byte[] value, int status)
+    {
+        onResult(GattOperation.Type.READ, service, characteristic, value, status);
+    }
+
+    void onCharacteristicWrite(int service, int characteristic, int status)
+    {
+        onResult(GattOperation.Type.WRITE, service, characteristic, null, status);
+    }
+
+    void onDescriptorWrite(int service, int characteristic, int status)
+    {
+        GattOperation.Type type;
+        synchronized (this)
+        {
+            if(current == null)
+                return;
+            type = current.type == GattOperation.Type.ENABLE_NOTIFY ? GattOperation.Type.ENABLE_NOTIFY : GattOperation.Type.WRITE_DESCRIPTOR;
+        }
+        onResult(type, service, characteristic, null, status);
+    }
+
+    void onMtuChanged(int status)
+    {
+        onResult(GattOperation.Type.REQUEST_MTU, 0, 0, null, status);
+    }
+
+    //Returns true when the notification was consumed by a waiting AWAIT_NOTIFY operation
+    boolean onNotification(int service, int characteristic, byte[] value)
+    {
+        GattOperation done;
+        synchronized (this)
+        {
+            if(current != null && current.type == GattOperation.Type.AWAIT_NOTIFY && current.matches(service, characteristic))
+            {
+                done = current;
+                finish();
+            }
+            else
+            {
+                //the notification can overtake the write callback that precedes the wait
+                for(GattOperation operation : pending)
+                {
+                    if(operation.type == GattOperation.Type.AWAIT_NOTIFY && operation.notified == null
+                            && operation.matches(service, characteristic))
+                    {
+                        operation.notified = value;
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+        complete(done, value);
+        next();
+        return true;
+    }
+
+    //Gives a write that has not been sent yet a new value, false once it went out
+    synchronized boolean replaceValue(GattOperation operation, byte[] value)
+    {
+        if(operation.cancelled || operation == current || !pending.contains(operation))
+            return false;
+        operation.value = value;
+        return true;
+    }
+
+    /**
+     * Drops the operation, its callback is not called anymore. A pending one is taken out of the queue,
+     * one already sent to the kettle is left to finish, without retries, as the stack cannot take it back.
+     * Returns false when the operation already completed. Futures cancel from any thread, moving the
+     * queue on is left to the loop.
+     */
+    boolean cancel(final GattOperation operation)
+    {
+        synchronized (this)
+        {
+            if(operation.cancelled)
+                return false;
+            if(current != operation && !pending.remove(operation))
+                return false;
+            operation.cancelled = true;
+            if(current != operation || operation.type != GattOperation.Type.AWAIT_NOTIFY)
+                return true;
+        }
+        //a wait has nothing on the radio, the queue can move on right away
+        loop.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                synchronized (GattOperationQueue.this)
+                {
+                    if(current != operation)
+                        return;
+                    finish();
+                }
+                next();
+            }
+        });
+        return true;
+    }
+
+    //Fails everything queued, used when the link goes away
+    void clear()
+    {
+        List<GattOperation> failed;
+        synchronized (this)
+        {
+            failed = new ArrayList<>();
+            if(current != null)
+                failed.add(current);
+            failed.addAll(pending);
+            pending.clear();
+            finish();
+        }
+        for(GattOperation operation : failed)
+            error(operation);
+    }
+
+    private void onResult(GattOperation.Type type, int service, int characteristic, byte[] value, int status)
+    {
+        KettleMetrics m = metrics;
+        if(m != null && status != GattTransport.GATT_SUCCESS)
+            m.onGattError(transport.getAddress(), status);
+        GattOperation done;
+        synchronized (this)
+        {
+            if(current == null || current.type != type || !current.matches(service, characteristic))
+                return;
+            done = current;
+            if(status != GattTransport.GATT_SUCCESS)
+            {
+                retryOrFail(done);
+                return;
+            }
+            finish();
+        }
+        complete(done, value);
+        next();
+    }
+
+    private void next()
+    {
+        GattOperation operation;
+        synchronized (this)
+        {
+            if(current != null || pending.isEmpty())
+                return;
+            operation = pending.poll();
+            current = operation;
+        }
+        start(operation);
+    }
+
+    private void start(final GattOperation operation)
+    {
+        final int attempt;
+        boolean satisfied = false;
+        synchronized (this)
+        {
+            if(current != operation)
+                return;
+            attempt = ++operation.attempts;
+            if(operation.type == GattOperation.Type.AWAIT_NOTIFY && operation.notified != null)
+            {
+                satisfied = true;
+                finish();
+            }
+            else
+            {
+                deadline = scheduler.schedule(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        loop.execute(new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                onTimeout(operation, attempt);
+                            }
+                        });
+                    }
+                }, operation.timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if(satisfied)
+        {
+            complete(operation, operation.notified);
+            next();
+            return;
+        }
+        if(operation.type == GattOperation.Type.AWAIT_NOTIFY)
+            return;
+
+        if(!issue(operation))
+        {
+            synchronized (this)
+            {
+                if(current != operation || operation.attempts != attempt)
+                    return;
+                retryOrFail(operation);
+            }
+        }
+    }
+
+    private boolean issue(GattOperation operation)
+    {
+        switch (operation.type)
+        {
+            case READ:
+                return transport.readCharacteristic(operation.service, operation.characteristic);
+            case WRITE:
+                return transport.writeCharacteristic(operation.service, operation.characteristic, operation.value);
+            case WRITE_DESCRIPTOR:
+                return transport.writeDescriptor(operation.service, operation.characteristic, operation.descriptor, operation.value);
+            case ENABLE_NOTIFY:
+                return transport.setCharacteristicNotification(operation.service, operation.characteristic, true)
+                        && transport.writeDescriptor(operation.service, operation.characteristic, operation.descriptor, operation.value);
+            case REQUEST_MTU:
+                return transport.requestMtu(operation.descriptor);
+            default:
+                return true;
+        }
+    }
+
+    private void onTimeout(GattOperation operation, int attempt)
+    {
+        synchronized (this)
+        {
+            if(current != operation || operation.attempts != attempt)
+                return;
+            retryOrFail(operation);
+        }
+    }
+
+    //Called with the lock held, the retry or the failure callbacks run on the loop
+    private void retryOrFail(final GattOperation operation)
+    {
+        if(deadline != null)
+            deadline.cancel(false);
+        deadline = null;
+
+        if(operation.retryable() && !operation.cancelled && operation.attempts <= retries)
+        {
+            KettleMetrics m = metrics;
+            if(m != null)
+                m.onRetry(transport.getAddress());
+            loop.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    start(operation);
+                }
+            });
+            return;
+        }
+
+        final List<GattOperation> failed = new ArrayList<>();
+        failed.add(operation);
+        Iterator<GattOperation> it = pending.iterator();
+        while(it.hasNext())
+        {
+            GattOperation next = it.next();
+            if(next.sequence == operation.sequence)
+            {
+                failed.add(next);
+                it.remove();
+            }
+        }
+        finish();
+        loop.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for(GattOperation f : failed)
+                    error(f);
+                next();
+            }
+        });
+    }
+
+    private void finish()
+    {
+        current = null;
+        if(deadline != null)
+            deadline.cancel(false);
+        deadline = null;
+    }
+
+    private static void complete(GattOperation operation, byte[] value)
+    {
+        if(operation.onComplete != null && !operation.cancelled)
+            operation.onComplete.onComplete(value);
+    }
+
+    private static void error(GattOperation operation)
+    {
+        if(operation.onComplete != null && !operation.cancelled)
+            operation.onComplete.onError();
+    }
+}
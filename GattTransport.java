@@ -0,0 +1,67 @@
+package org.sombrenuit.dk.kettleboy;
+
+/**
+ * The GATT operations the kettle protocol needs. Services, characteristics and
+ * descriptors are addressed by their 16 bit short uuid (for example 0xfe95, 0x0001, 0x2902).
+ * Operations return false when they could not be started, results arrive on the
+ * {@link Callback} passed to {@link #connect(Callback)}.
+ */
+public interface GattTransport
+{
+    int GATT_SUCCESS = 0;
+    int GATT_INSUFFICIENT_AUTHENTICATION = 5;
+    int GATT_FAILURE = 257;
+
+    //connection priorities, the values of the android BluetoothGatt constants
+    int PRIORITY_BALANCED = 0;
+    int PRIORITY_HIGH = 1;
+    int PRIORITY_LOW_POWER = 2;
+
+    //phy masks, the values of the android BluetoothDevice constants
+    int PHY_LE_1M = 1;
+    int PHY_LE_2M = 2;
+
+    //att mtu of every link until an exchange agrees on more
+    int DEFAULT_MTU = 23;
+
+    interface Callback
+    {
+        void onConnectionStateChange(int status, boolean connected);
+        void onServicesDiscovered(int status);
+        void onCharacteristicRead(int service, int characteristic, byte[] value, int status);
+        void onCharacteristicWrite(int service, int characteristic, int status);
+        void onCharacteristicChanged(int service, int characteristic, byte[] value);
+        void onDescriptorWrite(int service, int characteristic, int descriptor, int status);
+        void onMtuChanged(int mtu, int status);
+        void onPhyUpdate(int txPhy, int rxPhy, int status);
+    }
+
+    String getAddress();
+
+    boolean connect(Callback callback);
+
+    boolean discoverServices();
+
+    boolean hasService(int service);
+
+    boolean readCharacteristic(int service, int characteristic);
+
+    boolean writeCharacteristic(int service, int characteristic, byte[] value);
+
+    boolean setCharacteristicNotification(int service, int characteristic, boolean enable);
+
+    boolean writeDescriptor(int service, int characteristic, int descriptor, byte[] value);
+
+    //Takes effect without a callback, the stack renegotiates the connection interval on its own
+    boolean requestConnectionPriority(int priority);
+
+    //Answered by onMtuChanged
+    boolean requestMtu(int mtu);
+
+    //Answered by onPhyUpdate, phys is a mask of the PHY_LE values
+    boolean setPreferredPhy(int phys);
+
+    void disconnect();
+
+    void close();
+}
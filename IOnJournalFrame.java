@@ -0,0 +1,7 @@
+package org.sombrenuit.dk.kettleboy;
+
+public interface IOnJournalFrame
+{
+    //frame is only valid during the call, mac is the address as 48 bit number, see StatusJournal.macString
+    void onFrame(long mac, long time, byte[] frame);
+}
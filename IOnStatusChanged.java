@@ -0,0 +1,7 @@
+package org.sombrenuit.dk.kettleboy;
+
+public interface IOnStatusChanged
+{
+    //changed is a mask of the KettleStatus.CHANGED_* bits
+    void onStatusChanged(int changed, KettleStatus status);
+}
@@ -0,0 +1,104 @@
+package org.sombrenuit.dk.kettleboy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Key schedules and auth payloads of one kettle. Both cipher keys of the handshake, mixA of the mac
+ * and the token, are fixed per kettle, so the two payloads they produce are computed once per process.
+ */
+public final class KettleCipher
+{
+    private static final ConcurrentHashMap<String, KettleCipher> BY_MAC = new ConcurrentHashMap<>();
+
+    private final byte productId;
+    private final byte[] token;
+    private final byte[] authPayload;
+    private final byte[] key2Payload;
+
+    private KettleCipher(byte[] reversedMac, byte productId, byte[] token)
+    {
+        this.productId = productId;
+        this.token = token.clone();
+        byte[] mixPerm = KettleProtocol._cipherInit(KettleProtocol.mixA(reversedMac, productId));
+        this.authPayload = KettleProtocol._cipherCrypt(this.token, mixPerm);
+        this.key2Payload = KettleProtocol._cipherCrypt(KettleProtocol._KEY2, KettleProtocol._cipherInit(this.token));
+    }
+
+    //Cached state of the kettle, recomputed when it was cached for another product id or token
+    static KettleCipher forKettle(String mac, byte[] reversedMac, byte productId, byte[] token)
+    {
+        KettleCipher keys = BY_MAC.get(mac);
+        if(keys == null || keys.productId != productId || !Arrays.equals(keys.token, token))
+        {
+            keys = new KettleCipher(reversedMac, productId, token);
+            BY_MAC.put(mac, keys);
+        }
+        return keys;
+    }
+
+    /**
+     * Computes the auth state of every client in parallel, so a gateway coming back up does not run
+     * fifty key schedules inside the handshakes. The clients are split in one chunk per core,
+     * a schedule is only a few microseconds and a task per kettle would cost more than it saves.
+     * Returns once all of them are cached.
+     */
+    public static int precompute(Collection<KettleClient> clients, ExecutorService executor) throws InterruptedException
+    {
+        final List<KettleClient> all = new ArrayList<>(clients);
+        int chunks = Math.max(1, Math.min(all.size(), Runtime.getRuntime().availableProcessors()));
+        List<Future<Integer>> pending = new ArrayList<>(chunks);
+        for(int c = 0; c < chunks; c++)
+        {
+            final int from = all.size() * c / chunks;
+            final int to = all.size() * (c + 1) / chunks;
+            pending.add(executor.submit(new Callable<Integer>()
+            {
+                @Override
+                public Integer call()
+                {
+                    for(int i = from; i < to; i++)
+                        all.get(i).keys();
+                    return to - from;
+                }
+            }));
+        }
+        int done = 0;
+        for(Future<Integer> future : pending)
+        {
+            try
+            {
+                done += future.get();
+            }
+            catch (ExecutionException e)
+            {
+                //the kettles of that chunk compute their state during the handshake instead
+            }
+        }
+        return done;
+    }
+
+    public static void clear()
+    {
+        BY_MAC.clear();
+    }
+
+    //mixA key over the token, written to the auth characteristic
+    byte[] authPayload()
+    {
+        return authPayload.clone();
+    }
+
+    //token key over KEY2, written to the auth characteristic once the kettle answered
+    byte[] key2Payload()
+    {
+        return key2Payload.clone();
+    }
+}
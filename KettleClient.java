@@ -0,0 +1,1651 @@
+package org.sombrenuit.dk.kettleboy;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+/**
+ * Kettle protocol (connect, auth, reads and status notifications) on top of a {@link GattTransport}.
+ * Contains no android code, so it can be driven by a {@link SimulatedKettle}.
+ * GATT requests go through a {@link GattOperationQueue}, so every step has a deadline and retries.
+ * All operations share one authenticated session, it is opened on first use and closed after
+ * {@link #setIdleTimeout(long)} without activity, unless status notifications are subscribed.
+ * The session is only changed on the kettle's {@link KettleEventLoop}, callers are handed over to it.
+ */
+public class KettleClient
+{
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+    public static final int DEFAULT_RETRIES = 3;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30000;
+    public static final long DEFAULT_CACHE_TIMEOUT_MILLIS = 600000;
+    public static final long DEFAULT_COMMAND_WINDOW_MILLIS = 100;
+
+    enum SessionState
+    {
+        CLOSED,
+        OPENING,
+        READY
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String _mac;
+    private final byte[] _reversed_mac;
+    private final byte _product_id;
+    private final byte[] _token;
+    private final GattTransport transport;
+    private final ScheduledExecutorService scheduler;
+    private final long timeoutMillis;
+    private final int retries;
+    private final GattOperationQueue queue;
+    private final StatusCache cache;
+    private final KettleEventLoop loop;
+
+    //session state is only touched on the loop, volatile where it is read from outside
+    private boolean discovered = false;
+    private volatile boolean authenticated = false;
+    private IOnComplete<Void> onServiceComplete;
+    private ScheduledFuture<?> connectDeadline;
+    //copy on write, dispatch never waits for a subscribe or cancel
+    private final CopyOnWriteArrayList<StatusSubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    private volatile SessionState sessionState = SessionState.CLOSED;
+    private final List<IOnComplete<Void>> sessionWaiters = new ArrayList<>();
+    //bumped whenever a session ends, callbacks of older ones are ignored
+    private int generation;
+    private boolean subscribed = false;
+    private boolean notifying = false;
+    private volatile long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private long lastActivity;
+    private ScheduledFuture<?> idleTimer;
+
+    private volatile ReconnectPolicy reconnectPolicy = ReconnectPolicy.DEFAULT;
+    private ScheduledFuture<?> reconnectTimer;
+    private int reconnectAttempt;
+    private long readyAt;
+    //start of the current wait for status frames, 0 once the first one arrived
+    private long streamStartedAt;
+    private volatile long reconnects;
+    private volatile long failedReconnects;
+    private final LatencyHistogram timeToFirstStatus = new LatencyHistogram();
+    private volatile String protocolVersion;
+    private volatile StatusHistory history;
+    private final long macKey;
+    private volatile StatusJournal journal;
+    private volatile EtaEstimator estimator;
+    private volatile KettleMetrics metrics;
+    //start of the phase being measured in nanos, 0 when nothing is measured
+    private volatile long connectStartedAt;
+    private volatile long discoverStartedAt;
+    private volatile long authStartedAt;
+    private volatile ConnectionProfile handshakeProfile = ConnectionProfile.FAST_HANDSHAKE;
+    private volatile ConnectionProfile streamProfile = ConnectionProfile.STEADY_STREAM;
+    //profile last asked of the current link, null before one was
+    private volatile ConnectionProfile activeProfile;
+    private volatile int mtu = GattTransport.DEFAULT_MTU;
+
+    //Latest value for one setup characteristic, with everyone waiting for it to be written
+    private static final class PendingCommand
+    {
+        final int characteristic;
+        byte[] value;
+        GattOperation operation;
+        final List<IOnComplete<Void>> waiters = new ArrayList<>();
+
+        PendingCommand(int characteristic, byte[] value)
+        {
+            this.characteristic = characteristic;
+            this.value = value;
+        }
+    }
+
+    private final HashMap<Integer, PendingCommand> commands = new HashMap<>();
+    private volatile long commandWindowMillis = DEFAULT_COMMAND_WINDOW_MILLIS;
+
+    //The binder threads only hand events over, they are handled in order on the kettle's loop.
+    //Values are copied, the stack may reuse its buffer before the loop gets to them.
+    //Events of a session closed meanwhile are dropped, a late connect must not bring it back.
+    private final class SessionCallback implements GattTransport.Callback
+    {
+        private final int session;
+
+        SessionCallback(int session)
+        {
+            this.session = session;
+        }
+
+        @Override
+        public void onConnectionStateChange(final int status, final boolean connected)
+        {
+            loop.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if(session == generation)
+                        events.onConnectionStateChange(status, connected);
+                }
+            });
+        }
+
+        @Override
+        public void onServicesDiscovered(final int status)
+        {
+            loop.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if(session == generation)
+                        events.onServicesDiscovered(status);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicRead(final int service, final int characteristic, byte[] value, final int status)
+        {
+            final byte[] copy = value != null ? value.clone() : null;
+            loop.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if(session == generation)
+                        events.onCharacteristicRead(service, characteristic, copy, status);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicWrite(final int service, final int characteristic, final int status)
+        {
+            loop.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if(session == generation)
+                        events.onCharacteristicWrite(service, characteristic, status);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicChanged(final int service, final int characteristic, byte[] value)
+        {
+            final byte[] copy = value != null ? value.clone() : null;
+            loop.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if(session == generation)
+                        events.onCharacteristicChanged(service, characteristic, copy);
+                }
+            });
+        }
+
+        @Override
+        public void onDescriptorWrite(final int service, final int characteristic, final int descriptor, final int status)
+        {
+            loop.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if(session == generation)
+                        events.onDescriptorWrite(service, characteristic, descriptor, status);
+                }
+            });
+        }
+
+        @Override
+        public void onMtuChanged(final int mtu, final int status)
+        {
+            loop.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if(session == generation)
+                        events.onMtuChanged(mtu, status);
+                }
+            });
+        }
+
+        @Override
+        public void onPhyUpdate(final int txPhy, final int rxPhy, final int status)
+        {
+            loop.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if(session == generation)
+                        events.onPhyUpdate(txPhy, rxPhy, status);
+                }
+            });
+        }
+    }
+
+    private final GattTransport.Callback events = new GattTransport.Callback()
+    {
+        @Override
+        public void onConnectionStateChange(int status, boolean connected)
+        {
+            if(connected)
+            {
+                boolean discover = !discovered;
+                discovered = true;
+                if(discover)
+                {
+                    phaseEnd(KettleMetrics.Phase.CONNECT, connectStartedAt, true);
+                    connectStartedAt = 0;
+                    discoverStartedAt = phaseStart();
+                    applyProfile(handshakeProfile);
+                }
+                if(discover && !transport.discoverServices())
+                    serviceComplete(false);
+            }
+            else
+            {
+                discovered = false;
+                authenticated = false;
+                subscribed = false;
+                notifying = false;
+                activeProfile = null;
+                mtu = GattTransport.DEFAULT_MTU;
+                boolean dropped = sessionState == SessionState.READY;
+                if(dropped)
+                {
+                    generation++;
+                    sessionState = SessionState.CLOSED;
+                    //flapping links keep backing off, a link that held up starts over with the fast path
+                    if(System.currentTimeMillis() - readyAt >= reconnectPolicy.stableMillis)
+                        reconnectAttempt = 0;
+                }
+                queue.clear();
+                if(dropped)
+                    scheduleReconnect();
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(int status)
+        {
+            serviceComplete(status == GattTransport.GATT_SUCCESS);
+        }
+
+        @Override
+        public void onCharacteristicRead(int service, int characteristic, byte[] value, int status)
+        {
+            queue.onCharacteristicRead(service, characteristic, value, status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(int service, int characteristic, int status)
+        {
+            queue.onCharacteristicWrite(service, characteristic, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(int service, int characteristic, byte[] value)
+        {
+            if(service == KettleProtocol.UUID_SERVICE_DATA && characteristic == KettleProtocol.UUID_STATUS)
+            {
+                KettleMetrics m = metrics;
+                if(m != null)
+                    m.onNotification(_mac);
+                firstStatus();
+                //notifications flow, the handshake no longer needs the radio
+                ConnectionProfile stream = streamProfile;
+                if(activeProfile != stream)
+                    applyProfile(stream);
+                long now = System.currentTimeMillis();
+                StatusJournal recorder = journal;
+                if(recorder != null)
+                    recorder.append(macKey, now, value);
+                onStatusFrame(now, value);
+            }
+            else
+                queue.onNotification(service, characteristic, value);
+        }
+
+        @Override
+        public void onDescriptorWrite(int service, int characteristic, int descriptor, int status)
+        {
+            queue.onDescriptorWrite(service, characteristic, status);
+        }
+
+        @Override
+        public void onMtuChanged(int mtu, int status)
+        {
+            if(status == GattTransport.GATT_SUCCESS)
+                KettleClient.this.mtu = mtu;
+            queue.onMtuChanged(status);
+        }
+
+        @Override
+        public void onPhyUpdate(int txPhy, int rxPhy, int status)
+        {
+        }
+    };
+
+    public KettleClient(String mac, byte productId, GattTransport transport)
+    {
+        this(mac, productId, null, transport);
+    }
+
+    public KettleClient(String mac, byte productId, byte[] token, GattTransport transport)
+    {
+        this(mac, productId, token, transport, KettleScheduler.shared(), DEFAULT_TIMEOUT_MILLIS, DEFAULT_RETRIES);
+    }
+
+    public KettleClient(String mac, byte productId, byte[] token, GattTransport transport,
+                        ScheduledExecutorService scheduler, long timeoutMillis, int retries)
+    {
+        this(mac, productId, token, transport, scheduler, timeoutMillis, retries, new KettleEventLoop());
+    }
+
+    //Kettles given the same loop are driven one event at a time between them
+    public KettleClient(String mac, byte productId, byte[] token, GattTransport transport,
+                        ScheduledExecutorService scheduler, long timeoutMillis, int retries, KettleEventLoop loop)
+    {
+        this._mac = mac;
+        this._reversed_mac = KettleProtocol.reverseMac(mac);
+        this.macKey = StatusJournal.macKey(mac);
+        this._product_id = productId;
+        this._token = token != null ? token : KettleProtocol.generateRandomToken();
+        this.transport = transport;
+        this.scheduler = scheduler;
+        this.timeoutMillis = timeoutMillis;
+        this.retries = retries;
+        this.loop = loop;
+        this.queue = new GattOperationQueue(transport, scheduler, loop, timeoutMillis, retries);
+        this.cache = new StatusCache(DEFAULT_CACHE_TIMEOUT_MILLIS, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                requestStatus();
+            }
+        }, scheduler, timeoutMillis * (retries + 1));
+    }
+
+    public String getMac()
+    {
+        return _mac;
+    }
+
+    public KettleEventLoop getEventLoop()
+    {
+        return loop;
+    }
+
+    //Runs the task on the loop, right away when already on it
+    private void runOnLoop(Runnable task)
+    {
+        if(loop.inLoop())
+            task.run();
+        else
+            loop.execute(task);
+    }
+
+    //Timers fire on the scheduler, the work they trigger belongs on the loop
+    private Runnable onLoop(final Runnable task)
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                loop.execute(task);
+            }
+        };
+    }
+
+    GattTransport getTransport()
+    {
+        return transport;
+    }
+
+    public boolean isAuthenticated()
+    {
+        return authenticated;
+    }
+
+    SessionState getSessionState()
+    {
+        return sessionState;
+    }
+
+    public StatusCache getCache()
+    {
+        return cache;
+    }
+
+    //Status younger than the cache timeout comes from the cache, otherwise it is read from the kettle.
+    //Concurrent callers share one read.
+    public void status(boolean readCached, IOnComplete<KettleStatus> onComplete)
+    {
+        cache.read(readCached, onComplete);
+    }
+
+    public void setCacheTimeout(long millis)
+    {
+        cache.setTtl(millis);
+    }
+
+    //How long an unused session stays open, 0 closes it as soon as the last operation finished
+    public void setIdleTimeout(long millis)
+    {
+        idleTimeoutMillis = millis;
+    }
+
+    private void connect(IOnComplete<Void> onServiceComplete)
+    {
+        IOnComplete<Void> previous = this.onServiceComplete;
+        this.onServiceComplete = onServiceComplete;
+        if(previous != null)
+            previous.onError();
+        connectStartedAt = phaseStart();
+        discoverStartedAt = 0;
+        connectAttempt(0);
+    }
+
+    //A lost connect or discovery callback is handled like a lost GATT callback, the link is restarted
+    private void connectAttempt(final int attempt)
+    {
+        if(onServiceComplete == null)
+            return;
+        discovered = false;
+        authenticated = false;
+        if(connectDeadline != null)
+            connectDeadline.cancel(false);
+        connectDeadline = scheduler.schedule(onLoop(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if(attempt < retries)
+                    connectAttempt(attempt + 1);
+                else if(serviceComplete(false))
+                    transport.disconnect();
+            }
+        }), timeoutMillis, TimeUnit.MILLISECONDS);
+        if(!transport.connect(new SessionCallback(generation)))
+            serviceComplete(false);
+    }
+
+    //Returns true if a pending connect was completed by this call
+    private boolean serviceComplete(boolean success)
+    {
+        IOnComplete<Void> complete = onServiceComplete;
+        onServiceComplete = null;
+        if(connectDeadline != null)
+            connectDeadline.cancel(false);
+        connectDeadline = null;
+        if(complete == null)
+            return false;
+        if(discoverStartedAt != 0)
+            phaseEnd(KettleMetrics.Phase.DISCOVER, discoverStartedAt, success);
+        else
+            phaseEnd(KettleMetrics.Phase.CONNECT, connectStartedAt, success);
+        connectStartedAt = 0;
+        discoverStartedAt = 0;
+        if(success)
+            complete.onComplete(null);
+        else
+            complete.onError();
+        return true;
+    }
+
+    public void name(final IOnComplete<String> onComplete)
+    {
+        readAfterAuth(KettleProtocol.UUID_SERVICE_HARDWARE, KettleProtocol.UUID_NAME, onComplete);
+    }
+
+    public void firmwareVersion(final IOnComplete<String> onComplete)
+    {
+        readAfterAuth(KettleProtocol.UUID_SERVICE_HARDWARE, KettleProtocol.UUID_FIRMWARE, onComplete);
+    }
+
+    /**
+     * Name, firmware and mcu version in one session, the reads go out back to back after a single
+     * handshake. The result is cached per mac, readCached answers from it without connecting.
+     * A field the kettle does not answer for is left null, the call only fails without a session.
+     */
+    public void readDeviceInfo(boolean readCached, final IOnComplete<DeviceInfo> onComplete)
+    {
+        if(readCached)
+        {
+            DeviceInfo info = DeviceInfo.cached(_mac);
+            if(info != null)
+            {
+                onComplete.onComplete(info);
+                return;
+            }
+        }
+
+        withSession(new IOnComplete<Void>()
+        {
+            @Override
+            public void onComplete(Void val)
+            {
+                final int[] characteristics = {KettleProtocol.UUID_NAME, KettleProtocol.UUID_FIRMWARE, KettleProtocol.UUID_MCU_VERSION};
+                final String[] values = new String[characteristics.length];
+                final int[] remaining = {characteristics.length};
+                for(int i = 0; i < characteristics.length; i++)
+                {
+                    final int index = i;
+                    //one sequence per read, a missing attribute does not cancel the others
+                    queue.enqueue(GattOperation.read(KettleProtocol.UUID_SERVICE_HARDWARE, characteristics[i], new IOnComplete<byte[]>()
+                    {
+                        @Override
+                        public void onComplete(byte[] val)
+                        {
+                            done(val == null ? null : new String(val, UTF8));
+                        }
+
+                        @Override
+                        public void onError()
+                        {
+                            done(null);
+                        }
+
+                        //read callbacks all run on the loop
+                        private void done(String value)
+                        {
+                            values[index] = value;
+                            if(--remaining[0] > 0)
+                                return;
+                            release();
+                            firmwareRead(KettleProtocol.UUID_FIRMWARE, values[1]);
+                            DeviceInfo info = new DeviceInfo(_mac, values[0], values[1], values[2], protocolVersion, System.currentTimeMillis());
+                            DeviceInfo.store(info);
+                            onComplete.onComplete(info);
+                        }
+                    }));
+                }
+            }
+
+            @Override
+            public void onError()
+            {
+                onComplete.onError();
+            }
+        });
+    }
+
+    public CompletableFuture<DeviceInfo> readDeviceInfoAsync(boolean readCached, long timeoutMillis)
+    {
+        final CompletableFuture<DeviceInfo> future = new CompletableFuture<>();
+        deadline(future, timeoutMillis);
+        readDeviceInfo(readCached, new IOnComplete<DeviceInfo>()
+        {
+            @Override
+            public void onComplete(DeviceInfo val)
+            {
+                future.complete(val);
+            }
+
+            @Override
+            public void onError()
+            {
+                future.completeExceptionally(new KettleException(_mac, "Could not read the device info of MiKettle %s"));
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Setup commands. A command that arrives while an earlier one for the same characteristic has not
+     * been sent yet replaces its value, so a slider dragged across the range ends in one write of the
+     * last value and every caller is told once that write is done. Commands wait for the command
+     * window before going out and share the session with any read in progress.
+     */
+    public void setKeepWarm(KettleStatus.KeepWarmType type, int temperature, IOnComplete<Void> onComplete)
+    {
+        command(KettleProtocol.UUID_SETUP, KettleProtocol.setupValue(type, temperature), onComplete);
+    }
+
+    //Between 30 minutes and 12 hours, in steps of 30 minutes
+    public void setKeepWarmTime(int minutes, IOnComplete<Void> onComplete)
+    {
+        command(KettleProtocol.UUID_TIME, KettleProtocol.timeValue(minutes), onComplete);
+    }
+
+    public void setTurnOffAfterBoil(boolean turnOff, IOnComplete<Void> onComplete)
+    {
+        command(KettleProtocol.UUID_BOIL_MODE, KettleProtocol.boilModeValue(turnOff), onComplete);
+    }
+
+    public CompletableFuture<Void> setKeepWarmAsync(KettleStatus.KeepWarmType type, int temperature, long timeoutMillis)
+    {
+        return commandAsync(KettleProtocol.UUID_SETUP, KettleProtocol.setupValue(type, temperature), timeoutMillis);
+    }
+
+    public CompletableFuture<Void> setKeepWarmTimeAsync(int minutes, long timeoutMillis)
+    {
+        return commandAsync(KettleProtocol.UUID_TIME, KettleProtocol.timeValue(minutes), timeoutMillis);
+    }
+
+    public CompletableFuture<Void> setTurnOffAfterBoilAsync(boolean turnOff, long timeoutMillis)
+    {
+        return commandAsync(KettleProtocol.UUID_BOIL_MODE, KettleProtocol.boilModeValue(turnOff), timeoutMillis);
+    }
+
+    //How long a command waits for a newer one before it is written, 0 writes right away
+    public void setCommandWindow(long millis)
+    {
+        commandWindowMillis = millis;
+    }
+
+    private CompletableFuture<Void> commandAsync(int characteristic, byte[] value, long timeoutMillis)
+    {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        deadline(future, timeoutMillis);
+        command(characteristic, value, new IOnComplete<Void>()
+        {
+            @Override
+            public void onComplete(Void val)
+            {
+                future.complete(null);
+            }
+
+            @Override
+            public void onError()
+            {
+                future.completeExceptionally(new KettleException(_mac, "Could not send the command to MiKettle %s"));
+            }
+        });
+        return future;
+    }
+
+    private void command(final int characteristic, final byte[] value, final IOnComplete<Void> onComplete)
+    {
+        if(!loop.inLoop())
+        {
+            loop.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    command(characteristic, value, onComplete);
+                }
+            });
+            return;
+        }
+        PendingCommand pending = commands.get(characteristic);
+        if(pending != null && (pending.operation == null || queue.replaceValue(pending.operation, value)))
+        {
+            pending.value = value;
+            pending.waiters.add(onComplete);
+            return;
+        }
+        final PendingCommand command = new PendingCommand(characteristic, value);
+        command.waiters.add(onComplete);
+        commands.put(characteristic, command);
+        long window = commandWindowMillis;
+
+        Runnable send = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                sendCommand(command);
+            }
+        };
+        if(window > 0)
+            scheduler.schedule(onLoop(send), window, TimeUnit.MILLISECONDS);
+        else
+            send.run();
+    }
+
+    private void sendCommand(final PendingCommand command)
+    {
+        withSession(new IOnComplete<Void>()
+        {
+            @Override
+            public void onComplete(Void val)
+            {
+                command.operation = GattOperation.write(KettleProtocol.UUID_SERVICE_DATA, command.characteristic, command.value,
+                        new IOnComplete<byte[]>()
+                        {
+                            @Override
+                            public void onComplete(byte[] val)
+                            {
+                                release();
+                                commandDone(command, true);
+                            }
+
+                            @Override
+                            public void onError()
+                            {
+                                release();
+                                commandDone(command, false);
+                            }
+                        });
+                queue.enqueue(command.operation);
+            }
+
+            @Override
+            public void onError()
+            {
+                commandDone(command, false);
+            }
+        });
+    }
+
+    private void commandDone(PendingCommand command, boolean success)
+    {
+        //a newer command for the same characteristic may already have taken the slot
+        if(commands.get(command.characteristic) == command)
+            commands.remove(command.characteristic);
+        for(IOnComplete<Void> waiter : command.waiters)
+        {
+            if(success)
+                waiter.onComplete(null);
+            else
+                waiter.onError();
+        }
+    }
+
+    //Version the kettle reported during the last handshake, null before the first one
+    public String getProtocolVersion()
+    {
+        return protocolVersion;
+    }
+
+    private void readAfterAuth(final int service, final int characteristic, final IOnComplete<String> onComplete)
+    {
+        withSession(new IOnComplete<Void>()
+        {
+            @Override
+            public void onComplete(Void val)
+            {
+                queue.enqueue(GattOperation.read(service, characteristic, new IOnComplete<byte[]>()
+                {
+                    @Override
+                    public void onComplete(byte[] val)
+                    {
+                        release();
+                        //a read without a value is as good as a failed one
+                        if(val == null)
+                        {
+                            onComplete.onError();
+                            return;
+                        }
+                        String value = new String(val, UTF8);
+                        firmwareRead(characteristic, value);
+                        onComplete.onComplete(value);
+                    }
+
+                    @Override
+                    public void onError()
+                    {
+                        release();
+                        onComplete.onError();
+                    }
+                }));
+            }
+
+            @Override
+            public void onError()
+            {
+                onComplete.onError();
+            }
+        });
+    }
+
+    //A firmware update can move attributes around, the cached layout is rebuilt on the next connect when the revision changes
+    private void firmwareRead(int characteristic, String revision)
+    {
+        if(characteristic == KettleProtocol.UUID_FIRMWARE && revision != null)
+            GattAttributeIndex.forMac(_mac).setFirmware(revision);
+    }
+
+    /**
+     * Async variants. The future fails with a {@link KettleException} when the kettle cannot be reached
+     * or answers with an error, and with a TimeoutException after timeoutMillis. Cancelling it, or the
+     * timeout, takes the request out of the GATT queue. Futures complete on the bluetooth or scheduler
+     * thread, dependents doing real work should use the *Async stages with their own executor.
+     */
+    public CompletableFuture<String> nameAsync(long timeoutMillis)
+    {
+        return readAsync(KettleProtocol.UUID_SERVICE_HARDWARE, KettleProtocol.UUID_NAME, "Could not read the name of MiKettle %s", timeoutMillis);
+    }
+
+    public CompletableFuture<String> firmwareVersionAsync(long timeoutMillis)
+    {
+        return readAsync(KettleProtocol.UUID_SERVICE_HARDWARE, KettleProtocol.UUID_FIRMWARE, "Could not read the firmware of MiKettle %s", timeoutMillis);
+    }
+
+    public CompletableFuture<KettleStatus> statusAsync(boolean readCached, long timeoutMillis)
+    {
+        final CompletableFuture<KettleStatus> future = new CompletableFuture<>();
+        final IOnComplete<KettleStatus> waiter = new IOnComplete<KettleStatus>()
+        {
+            @Override
+            public void onComplete(KettleStatus val)
+            {
+                future.complete(val);
+            }
+
+            @Override
+            public void onError()
+            {
+                future.completeExceptionally(new KettleException(_mac, "Could not read the status of MiKettle %s"));
+            }
+        };
+        deadline(future, timeoutMillis);
+        future.whenComplete(new BiConsumer<KettleStatus, Throwable>()
+        {
+            @Override
+            public void accept(KettleStatus status, Throwable error)
+            {
+                if(error != null)
+                    cache.cancel(waiter);
+            }
+        });
+        cache.read(readCached, waiter);
+        return future;
+    }
+
+    private CompletableFuture<String> readAsync(final int service, final int characteristic, final String error, long timeoutMillis)
+    {
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        final AtomicReference<GattOperation> operation = new AtomicReference<>();
+        deadline(future, timeoutMillis);
+        future.whenComplete(new BiConsumer<String, Throwable>()
+        {
+            @Override
+            public void accept(String value, Throwable cause)
+            {
+                //the read callback will not come anymore, it has to give the session back here
+                GattOperation queued = operation.get();
+                if(cause != null && queued != null && queue.cancel(queued))
+                    release();
+            }
+        });
+        withSession(new IOnComplete<Void>()
+        {
+            @Override
+            public void onComplete(Void val)
+            {
+                if(future.isDone())
+                {
+                    release();
+                    return;
+                }
+                GattOperation read = GattOperation.read(service, characteristic, new IOnComplete<byte[]>()
+                {
+                    @Override
+                    public void onComplete(byte[] val)
+                    {
+                        release();
+                        if(val == null)
+                        {
+                            future.completeExceptionally(new KettleException(_mac, error));
+                            return;
+                        }
+                        String value = new String(val, UTF8);
+                        firmwareRead(characteristic, value);
+                        future.complete(value);
+                    }
+
+                    @Override
+                    public void onError()
+                    {
+                        release();
+                        future.completeExceptionally(new KettleException(_mac, error));
+                    }
+                });
+                operation.set(read);
+                queue.enqueue(read);
+                //cancelled between the check above and the enqueue
+                if(future.isDone() && queue.cancel(read))
+                    release();
+            }
+
+            @Override
+            public void onError()
+            {
+                future.completeExceptionally(new KettleException(_mac, error));
+            }
+        });
+        return future;
+    }
+
+    //Fails the future with a TimeoutException unless it completes within timeoutMillis, 0 waits forever
+    private <T> void deadline(final CompletableFuture<T> future, final long timeoutMillis)
+    {
+        if(timeoutMillis <= 0)
+            return;
+        final ScheduledFuture<?> timer = scheduler.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                future.completeExceptionally(new TimeoutException("MiKettle " + _mac + " did not answer within " + timeoutMillis + "ms"));
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        future.whenComplete(new BiConsumer<T, Throwable>()
+        {
+            @Override
+            public void accept(T value, Throwable error)
+            {
+                timer.cancel(false);
+            }
+        });
+    }
+
+    /**
+     * Adds a listener to the status notifications. Every listener shares the one authenticated
+     * connection, frames reach it on the shared listener threads, oldest dropped past
+     * {@link StatusSubscription#DEFAULT_CAPACITY} pending frames.
+     */
+    public StatusSubscription subscribe(IOnData<byte[]> data)
+    {
+        return subscribe(data, KettleScheduler.listeners(), StatusSubscription.DEFAULT_CAPACITY, StatusSubscription.Overflow.DROP_OLDEST);
+    }
+
+    public StatusSubscription subscribe(IOnData<byte[]> data, Executor executor, int capacity, StatusSubscription.Overflow overflow)
+    {
+        StatusSubscription subscription = new StatusSubscription(this, data, executor, capacity, overflow);
+        subscriptions.add(subscription);
+        startSubscription();
+        return subscription;
+    }
+
+    /**
+     * Delta mode: the listener only hears about frames that change a field, with a mask of the
+     * KettleStatus.CHANGED_* bits. With coalesceMillis above 0 it hears at most once per window,
+     * about the latest status. Only the latest frame is queued for it.
+     */
+    public StatusSubscription subscribeChanges(IOnStatusChanged listener, long coalesceMillis)
+    {
+        return subscribeChanges(listener, coalesceMillis, KettleScheduler.listeners());
+    }
+
+    public StatusSubscription subscribeChanges(IOnStatusChanged listener, long coalesceMillis, Executor executor)
+    {
+        final StatusDeltaFilter filter = new StatusDeltaFilter(listener, scheduler, coalesceMillis, executor);
+        return subscribe(new IOnData<byte[]>()
+        {
+            @Override
+            public void onData(byte[] val)
+            {
+                filter.onFrame(val);
+            }
+        }, executor, 1, StatusSubscription.Overflow.LATEST_ONLY);
+    }
+
+    //Called by StatusSubscription.cancel, the last one out lets the session close on idle
+    void unsubscribe(StatusSubscription subscription)
+    {
+        subscriptions.remove(subscription);
+        runOnLoop(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if(!subscriptions.isEmpty())
+                    return;
+                subscribed = false;
+                release();
+            }
+        });
+    }
+
+    public int getSubscriberCount()
+    {
+        return subscriptions.size();
+    }
+
+    private void startSubscription()
+    {
+        if(!loop.inLoop())
+        {
+            loop.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    startSubscription();
+                }
+            });
+            return;
+        }
+        if(streamStartedAt == 0 && !subscribed)
+            streamStartedAt = System.currentTimeMillis();
+        withSession(new SubscriptionWaiter());
+    }
+
+    //Waits for the session on behalf of the subscriptions, the only waiter closeIfUnused may fail
+    private final class SubscriptionWaiter implements IOnComplete<Void>
+    {
+        @Override
+        public void onComplete(Void val)
+        {
+            if(subscriptions.isEmpty())
+            {
+                release();
+                return;
+            }
+            if(subscribed)
+                return;
+            subscribed = true;
+            if(notifying)
+                return;
+            notifying = true;
+            subscribeData();
+        }
+
+        @Override
+        public void onError()
+        {
+            //the last subscriber left while the session was opening, nothing to bring back
+            if(subscriptions.isEmpty())
+                return;
+            failedReconnects++;
+            reconnectAttempt++;
+            scheduleReconnect();
+        }
+    }
+
+    //Brings the session and the status notifications back while anyone is subscribed
+    private void scheduleReconnect()
+    {
+        ReconnectPolicy policy = reconnectPolicy;
+        if(subscriptions.isEmpty() || !policy.isEnabled() || reconnectTimer != null)
+            return;
+        if(streamStartedAt == 0)
+            streamStartedAt = System.currentTimeMillis();
+        long delay = policy.delay(reconnectAttempt, ThreadLocalRandom.current());
+        reconnectTimer = scheduler.schedule(onLoop(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                reconnectTimer = null;
+                if(subscriptions.isEmpty())
+                    return;
+                reconnects++;
+                startSubscription();
+            }
+        }), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void firstStatus()
+    {
+        if(streamStartedAt == 0)
+            return;
+        long waited = System.currentTimeMillis() - streamStartedAt;
+        streamStartedAt = 0;
+        timeToFirstStatus.record(waited);
+        KettleMetrics m = metrics;
+        if(m != null)
+        {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(waited);
+            m.onPhase(_mac, KettleMetrics.Phase.FIRST_STATUS, nanos, true);
+            ConnectionProfile profile = activeProfile;
+            if(profile != null)
+                m.onProfile(_mac, profile.name, KettleMetrics.Phase.FIRST_STATUS, nanos);
+        }
+    }
+
+    //Decode and listener path of a status frame, shared by the live notifications and journal replay
+    private void onStatusFrame(long time, byte[] value)
+    {
+        StatusHistory recorder = history;
+        if(recorder != null)
+            recorder.record(time, value);
+        EtaEstimator eta = estimator;
+        if(eta != null)
+        {
+            eta.update(time, value);
+            cache.publish(value, eta.getEtaMillis(), eta.getConfidence());
+        }
+        else
+            cache.publish(value);
+        if(!subscriptions.isEmpty())
+        {
+            //the transport may reuse its buffer, listeners run later and share one copy
+            byte[] frame = value.clone();
+            for(StatusSubscription subscription : subscriptions)
+                subscription.offer(frame);
+        }
+    }
+
+    /**
+     * Feeds a recorded or beacon built status frame through the same path as a live notification:
+     * history, cache and subscriptions. Replayed frames are not journaled again. Use with a client
+     * that is not connected, or live and replayed frames mix.
+     * Runs on the client's loop like a live frame, called from elsewhere the frame is copied first and
+     * handled later, the caller may reuse its buffer right away.
+     */
+    public void replay(final long time, byte[] frame)
+    {
+        if(frame == null || frame.length < KettleStatus.FRAME_LENGTH)
+            return;
+        final byte[] replayed = loop.inLoop() ? frame : frame.clone();
+        runOnLoop(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                onStatusFrame(time, replayed);
+            }
+        });
+    }
+
+    //Every raw status frame is appended to the journal from now on, null stops journaling
+    public void setJournal(StatusJournal journal)
+    {
+        this.journal = journal;
+    }
+
+    public StatusJournal getJournal()
+    {
+        return journal;
+    }
+
+    public long getMacKey()
+    {
+        return macKey;
+    }
+
+    //Hot path timings and counts go to metrics from now on, null stops measuring
+    public void setMetrics(KettleMetrics metrics)
+    {
+        this.metrics = metrics;
+        queue.setMetrics(metrics);
+    }
+
+    public KettleMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    private long phaseStart()
+    {
+        return metrics != null ? System.nanoTime() : 0;
+    }
+
+    private void phaseEnd(KettleMetrics.Phase phase, long startedAt, boolean success)
+    {
+        KettleMetrics m = metrics;
+        if(m == null || startedAt == 0)
+            return;
+        long nanos = System.nanoTime() - startedAt;
+        m.onPhase(_mac, phase, nanos, success);
+        ConnectionProfile profile = activeProfile;
+        if(success && profile != null)
+            m.onProfile(_mac, profile.name, phase, nanos);
+    }
+
+    /**
+     * Link parameters for the handshake, from link up to the end of auth, and for the rest of the
+     * session once status frames flow. Takes effect with the next link. Defaults are
+     * {@link ConnectionProfile#FAST_HANDSHAKE} and {@link ConnectionProfile#STEADY_STREAM}.
+     */
+    public void setProfiles(ConnectionProfile handshake, ConnectionProfile stream)
+    {
+        handshakeProfile = handshake;
+        streamProfile = stream;
+    }
+
+    public ConnectionProfile getHandshakeProfile()
+    {
+        return handshakeProfile;
+    }
+
+    public ConnectionProfile getStreamProfile()
+    {
+        return streamProfile;
+    }
+
+    //Profile of the current link, null without one
+    public ConnectionProfile getActiveProfile()
+    {
+        return activeProfile;
+    }
+
+    //Agreed with the kettle for the current link
+    public int getMtu()
+    {
+        return mtu;
+    }
+
+    //Runs on the loop, the stack may grant less than asked
+    private void applyProfile(ConnectionProfile profile)
+    {
+        if(profile == activeProfile)
+            return;
+        activeProfile = profile;
+        if(profile.priority >= 0)
+            transport.requestConnectionPriority(profile.priority);
+        if(profile.phys != 0)
+            transport.setPreferredPhy(profile.phys);
+    }
+
+    //Every status frame updates the estimate from now on, null stops estimating
+    public void setEstimator(EtaEstimator estimator)
+    {
+        this.estimator = estimator;
+    }
+
+    public EtaEstimator getEstimator()
+    {
+        return estimator;
+    }
+
+    //Every status frame is recorded into the history from now on, null stops recording
+    public void setHistory(StatusHistory history)
+    {
+        this.history = history;
+    }
+
+    public StatusHistory getHistory()
+    {
+        return history;
+    }
+
+    public void setReconnectPolicy(ReconnectPolicy policy)
+    {
+        reconnectPolicy = policy;
+    }
+
+    public ReconnectPolicy getReconnectPolicy()
+    {
+        return reconnectPolicy;
+    }
+
+    //Reconnects started by the recovery, including the ones that failed
+    public long getReconnects()
+    {
+        return reconnects;
+    }
+
+    public long getFailedReconnects()
+    {
+        return failedReconnects;
+    }
+
+    //From a subscribe or a drop to the next status frame
+    public LatencyHistogram getTimeToFirstStatus()
+    {
+        return timeToFirstStatus;
+    }
+
+    //The kettle pushes status through aa02 notifications, a refresh enables them and the next frame
+    //completes the cache. Without a subscriber the session then closes on idle as usual.
+    private void requestStatus()
+    {
+        withSession(new IOnComplete<Void>()
+        {
+            @Override
+            public void onComplete(Void val)
+            {
+                if(subscribed || notifying)
+                    return;
+                notifying = true;
+                queue.enqueue(GattOperation.enableNotify(KettleProtocol.UUID_SERVICE_DATA, KettleProtocol.UUID_STATUS, new IOnComplete<byte[]>()
+                {
+                    @Override
+                    public void onComplete(byte[] val)
+                    {
+                        release();
+                    }
+
+                    @Override
+                    public void onError()
+                    {
+                        notifying = false;
+                        release();
+                        cache.fail();
+                    }
+                }));
+            }
+
+            @Override
+            public void onError()
+            {
+                cache.fail();
+            }
+        });
+    }
+
+    //Runs onReady once the shared session is authenticated, opening it if needed
+    private void withSession(final IOnComplete<Void> onReady)
+    {
+        //every operation starts on the loop, callers never drive the state machine themselves
+        if(!loop.inLoop())
+        {
+            loop.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    withSession(onReady);
+                }
+            });
+            return;
+        }
+        lastActivity = System.currentTimeMillis();
+        if(idleTimer != null)
+            idleTimer.cancel(false);
+        idleTimer = null;
+
+        if(sessionState == SessionState.READY)
+        {
+            onReady.onComplete(null);
+            return;
+        }
+        sessionWaiters.add(onReady);
+        if(sessionState == SessionState.CLOSED)
+        {
+            sessionState = SessionState.OPENING;
+            openSession();
+        }
+    }
+
+    private void openSession()
+    {
+        final int session = generation;
+        connect(new IOnComplete<Void>()
+        {
+            @Override
+            public void onComplete(Void val)
+            {
+                //a sequence of its own, a kettle refusing the exchange does not fail the auth after it
+                ConnectionProfile profile = activeProfile;
+                if(profile != null && profile.mtu > GattTransport.DEFAULT_MTU)
+                    queue.enqueue(GattOperation.requestMtu(profile.mtu, null));
+                auth(new IOnComplete<Void>()
+                {
+                    @Override
+                    public void onComplete(Void val)
+                    {
+                        sessionOpened(session, true);
+                    }
+
+                    @Override
+                    public void onError()
+                    {
+                        sessionOpened(session, false);
+                    }
+                });
+            }
+
+            @Override
+            public void onError()
+            {
+                sessionOpened(session, false);
+            }
+        });
+    }
+
+    private void sessionOpened(int session, boolean success)
+    {
+        //closed while opening, closeSession already failed the waiters
+        if(session != generation)
+            return;
+        if(!success)
+            generation++;
+        sessionState = success ? SessionState.READY : SessionState.CLOSED;
+        if(success)
+            readyAt = System.currentTimeMillis();
+        //a waiter may open the next session right away, it must not find itself in the list
+        List<IOnComplete<Void>> waiters = new ArrayList<>(sessionWaiters);
+        sessionWaiters.clear();
+        if(!success)
+            transport.close();
+        else if(subscriptions.isEmpty())
+            applyProfile(streamProfile);
+
+        for(IOnComplete<Void> waiter : waiters)
+        {
+            if(success)
+                waiter.onComplete(null);
+            else
+                waiter.onError();
+        }
+        if(success)
+            release();
+    }
+
+    //Called when an operation on the session finished, arms the idle close. Cancelled futures call it
+    //from their own thread.
+    private void release()
+    {
+        if(!loop.inLoop())
+        {
+            loop.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    release();
+                }
+            });
+            return;
+        }
+        lastActivity = System.currentTimeMillis();
+        if(subscribed || sessionState != SessionState.READY || idleTimer != null)
+            return;
+        idleTimer = scheduler.schedule(onLoop(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                closeIfIdle();
+            }
+        }), idleTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void closeIfIdle()
+    {
+        idleTimer = null;
+        if(subscribed || sessionState != SessionState.READY)
+            return;
+        long idle = System.currentTimeMillis() - lastActivity;
+        if(!queue.isIdle() || idle < idleTimeoutMillis)
+        {
+            idleTimer = scheduler.schedule(onLoop(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    closeIfIdle();
+                }
+            }), Math.max(1, idleTimeoutMillis - idle), TimeUnit.MILLISECONDS);
+            return;
+        }
+        closeSession();
+    }
+
+    //Drops the connection now instead of waiting for idle, subscriptions stay for the next session
+    void close()
+    {
+        runOnLoop(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                closeSession();
+            }
+        });
+    }
+
+    //Closes the session right away when nothing uses it, instead of waiting for the idle timeout.
+    //A session still opening for subscribers that are gone by now is given up as well.
+    void closeIfUnused()
+    {
+        runOnLoop(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if(subscribed || !subscriptions.isEmpty() || sessionState == SessionState.CLOSED)
+                    return;
+                //while opening the queue only holds the handshake, anyone else waits for the session
+                if(sessionState == SessionState.READY && !queue.isIdle())
+                    return;
+                for(IOnComplete<Void> waiter : sessionWaiters)
+                {
+                    if(!(waiter instanceof SubscriptionWaiter))
+                        return;
+                }
+                closeSession();
+            }
+        });
+    }
+
+    //Runs on the loop. close() instead of disconnect(), so an android autoConnect gatt does not come back on its own.
+    //A session still opening is given up as well: its connect is stopped and whoever waits for it fails.
+    private void closeSession()
+    {
+        generation++;
+        sessionState = SessionState.CLOSED;
+        discovered = false;
+        authenticated = false;
+        subscribed = false;
+        notifying = false;
+        activeProfile = null;
+        mtu = GattTransport.DEFAULT_MTU;
+        onServiceComplete = null;
+        if(connectDeadline != null)
+            connectDeadline.cancel(false);
+        connectDeadline = null;
+        connectStartedAt = 0;
+        discoverStartedAt = 0;
+        if(idleTimer != null)
+            idleTimer.cancel(false);
+        idleTimer = null;
+        List<IOnComplete<Void>> waiters = new ArrayList<>(sessionWaiters);
+        sessionWaiters.clear();
+        queue.clear();
+        transport.close();
+        for(IOnComplete<Void> waiter : waiters)
+            waiter.onError();
+        //after the waiters, a failed subscription start would otherwise arm it again
+        if(reconnectTimer != null)
+            reconnectTimer.cancel(false);
+        reconnectTimer = null;
+        streamStartedAt = 0;
+    }
+
+    private void auth(IOnComplete<Void> onComplete)
+    {
+        auth(onComplete, 0);
+    }
+
+    //KEY1 to auth init, subscribe to auth, send the ciphered token, wait for the kettle's answer,
+    //send KEY2 ciphered with the token and read the version to finish.
+    //A step is not sent twice, the kettle would take a repeated token as the next step. A failed step
+    //fails the sequence and the handshake starts over from KEY1, at most retries times.
+    private void auth(final IOnComplete<Void> onComplete, final int attempt)
+    {
+        if(attempt == 0)
+            authStartedAt = phaseStart();
+        if(!transport.hasService(KettleProtocol.UUID_SERVICE_AUTH))
+        {
+            phaseEnd(KettleMetrics.Phase.AUTH, authStartedAt, false);
+            onComplete.onError();
+            return;
+        }
+
+        final KettleCipher keys = keys();
+        queue.enqueue(
+                GattOperation.write(KettleProtocol.UUID_SERVICE_AUTH, KettleProtocol.UUID_AUTH_INIT, KettleProtocol._KEY1, null).noRetry(),
+                GattOperation.enableNotify(KettleProtocol.UUID_SERVICE_AUTH, KettleProtocol.UUID_AUTH, null).noRetry(),
+                GattOperation.write(KettleProtocol.UUID_SERVICE_AUTH, KettleProtocol.UUID_AUTH, keys.authPayload(), null).noRetry(),
+                GattOperation.awaitNotify(KettleProtocol.UUID_SERVICE_AUTH, KettleProtocol.UUID_AUTH, null),
+                GattOperation.write(KettleProtocol.UUID_SERVICE_AUTH, KettleProtocol.UUID_AUTH, keys.key2Payload(), null).noRetry(),
+                GattOperation.read(KettleProtocol.UUID_SERVICE_AUTH, KettleProtocol.UUID_VERSION, new IOnComplete<byte[]>()
+                {
+                    @Override
+                    public void onComplete(byte[] val)
+                    {
+                        authenticated = true;
+                        phaseEnd(KettleMetrics.Phase.AUTH, authStartedAt, true);
+                        //a different version means new firmware, the cached info is dropped then
+                        if(val != null)
+                        {
+                            String version = new String(val, UTF8);
+                            protocolVersion = version;
+                            DeviceInfo.checkVersion(_mac, version);
+                        }
+                        onComplete.onComplete(null);
+                    }
+
+                    @Override
+                    public void onError()
+                    {
+                        if(discovered && attempt < retries)
+                            auth(onComplete, attempt + 1);
+                        else
+                        {
+                            phaseEnd(KettleMetrics.Phase.AUTH, authStartedAt, false);
+                            onComplete.onError();
+                        }
+                    }
+                }).noRetry());
+    }
+
+    //Handshake payloads, computed once per kettle and token
+    KettleCipher keys()
+    {
+        return KettleCipher.forKettle(_mac, _reversed_mac, _product_id, _token);
+    }
+
+    private void subscribeData()
+    {
+        final long startedAt = phaseStart();
+        queue.enqueue(GattOperation.enableNotify(KettleProtocol.UUID_SERVICE_DATA, KettleProtocol.UUID_STATUS, new IOnComplete<byte[]>()
+        {
+            @Override
+            public void onComplete(byte[] val)
+            {
+                phaseEnd(KettleMetrics.Phase.SUBSCRIBE, startedAt, true);
+            }
+
+            @Override
+            public void onError()
+            {
+                phaseEnd(KettleMetrics.Phase.SUBSCRIBE, startedAt, false);
+                subscribed = false;
+                notifying = false;
+                boolean linkUp = discovered;
+                if(linkUp)
+                    reconnectAttempt++;
+                release();
+                //a dropped link is picked up by the disconnect handler
+                if(linkUp)
+                    scheduleReconnect();
+            }
+        }));
+    }
+
+    public void destroy()
+    {
+        //closed first, so the cancels below find no session to arm an idle close for
+        close();
+        for(StatusSubscription subscription : subscriptions)
+            subscription.cancel();
+    }
+}
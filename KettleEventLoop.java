@@ -0,0 +1,127 @@
+package org.sombrenuit.dk.kettleboy;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs tasks one at a time in submission order, on threads borrowed from a backing executor.
+ * A {@link KettleClient} hands every bluetooth callback and the start of every operation to its loop,
+ * so its connection state machine is only ever driven by one thread at a time and the binder threads
+ * never wait for a lock. Loops are cheap: each kettle can have its own on a small shared pool, or
+ * several kettles can share one loop.
+ * Submitting is lock free: tasks go into a linked multi producer, single consumer queue, and the loop
+ * is scheduled on the executor only when it was idle. It gives its thread back after a batch of tasks
+ * so one busy kettle cannot starve the others on the pool.
+ */
+public class KettleEventLoop implements Executor
+{
+    private static final int BATCH = 64;
+
+    private static final class Node
+    {
+        Runnable task;
+        volatile Node next;
+
+        Node(Runnable task)
+        {
+            this.task = task;
+        }
+    }
+
+    private final Executor executor;
+    //producers swap themselves in at the tail, the consumer walks from head
+    private final AtomicReference<Node> tail;
+    private Node head;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile Thread runner;
+
+    private final Runnable drain = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            drain();
+        }
+    };
+
+    public KettleEventLoop()
+    {
+        this(KettleScheduler.loops());
+    }
+
+    public KettleEventLoop(Executor executor)
+    {
+        this.executor = executor;
+        Node stub = new Node(null);
+        head = stub;
+        tail = new AtomicReference<>(stub);
+    }
+
+    @Override
+    public void execute(Runnable task)
+    {
+        Node node = new Node(task);
+        Node previous = tail.getAndSet(node);
+        previous.next = node;
+        schedule();
+    }
+
+    //True on the thread currently running this loop's tasks
+    public boolean inLoop()
+    {
+        return runner == Thread.currentThread();
+    }
+
+    private void schedule()
+    {
+        if(!scheduled.compareAndSet(false, true))
+            return;
+        try
+        {
+            executor.execute(drain);
+        }
+        catch (RejectedExecutionException e)
+        {
+            //the pool is shutting down, the tasks stay queued
+            scheduled.set(false);
+        }
+    }
+
+    private void drain()
+    {
+        runner = Thread.currentThread();
+        try
+        {
+            for(int i = 0; i < BATCH; i++)
+            {
+                Node next = head.next;
+                if(next == null)
+                    break;
+                head = next;
+                Runnable task = next.task;
+                //the node stays as the stub, it must not keep the task alive
+                next.task = null;
+                try
+                {
+                    task.run();
+                }
+                catch (RuntimeException e)
+                {
+                    //one failing task must not stall every task queued behind it
+                    Thread thread = Thread.currentThread();
+                    thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+                }
+            }
+        }
+        finally
+        {
+            runner = null;
+            scheduled.set(false);
+        }
+        //a producer may have linked a task after the last check, or the batch ran out
+        if(head.next != null || tail.get() != head)
+            schedule();
+    }
+}
@@ -0,0 +1,20 @@
+package org.sombrenuit.dk.kettleboy;
+
+//Failure of a kettle request, carried by the futures of the async API
+public class KettleException extends Exception
+{
+    private static final long serialVersionUID = 1L;
+
+    private final String mac;
+
+    public KettleException(String mac, String message)
+    {
+        super(String.format(message, mac));
+        this.mac = mac;
+    }
+
+    public String getMac()
+    {
+        return mac;
+    }
+}
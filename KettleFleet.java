@@ -0,0 +1,391 @@
+package org.sombrenuit.dk.kettleboy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares a fixed number of connection slots between more kettles than the bluetooth stack can keep
+ * connected at once. A kettle holding a slot is subscribed to status notifications, the others are
+ * disconnected. Every rotation up to {@link #getMaxActive()} slots go to kettles last seen heating,
+ * cooling or keeping warm, the rest to the kettles whose status is the most out of date, so idle
+ * kettles take turns however many kettles are busy. With r slots left for them, each of n idle
+ * kettles reports at least every n / r + 1 rotations.
+ * A kettle keeps a new slot for at least one rotation, long enough to connect and authenticate.
+ * Clients handed to the fleet are driven by it and should not be subscribed or closed directly.
+ */
+public class KettleFleet
+{
+    public static final long DEFAULT_ROTATION_MILLIS = 15000;
+
+    //Per kettle figures, a snapshot taken by stats()
+    public static final class Stats
+    {
+        public final String mac;
+        public final boolean connected;
+        public final boolean active;
+        //ms since the last status frame, -1 when none was ever received
+        public final long stalenessMillis;
+        public final long statusFrames;
+        public final int grants;
+
+        Stats(String mac, boolean connected, boolean active, long stalenessMillis, long statusFrames, int grants)
+        {
+            this.mac = mac;
+            this.connected = connected;
+            this.active = active;
+            this.stalenessMillis = stalenessMillis;
+            this.statusFrames = statusFrames;
+            this.grants = grants;
+        }
+
+        @Override
+        public String toString()
+        {
+            return mac + (connected ? " connected" : " waiting") + (active ? " active" : "")
+                    + " staleness=" + stalenessMillis + "ms frames=" + statusFrames + " grants=" + grants;
+        }
+    }
+
+    private final class Member
+    {
+        final KettleClient client;
+        boolean holding;
+        StatusSubscription subscription;
+        long grantedAt;
+        long lastStatusAt;
+        long statusFrames;
+        int grants;
+        boolean active;
+
+        Member(KettleClient client)
+        {
+            this.client = client;
+        }
+
+        boolean connected()
+        {
+            return holding;
+        }
+    }
+
+    //active kettles first, then the one with the oldest status, never heard of counts as oldest
+    private static final Comparator<Member> PRIORITY = new Comparator<Member>()
+    {
+        @Override
+        public int compare(Member a, Member b)
+        {
+            if(a.active != b.active)
+                return a.active ? -1 : 1;
+            return Long.compare(a.lastStatusAt, b.lastStatusAt);
+        }
+    };
+
+    //oldest status first, whether active or not
+    private static final Comparator<Member> AGE = new Comparator<Member>()
+    {
+        @Override
+        public int compare(Member a, Member b)
+        {
+            return Long.compare(a.lastStatusAt, b.lastStatusAt);
+        }
+    };
+
+    private final int slots;
+    private final ScheduledExecutorService scheduler;
+    private final Executor listenerExecutor;
+    private final LinkedHashMap<String, Member> members = new LinkedHashMap<>();
+    private long rotationMillis = DEFAULT_ROTATION_MILLIS;
+    private int maxActive;
+    private ScheduledFuture<?> rotation;
+
+    public KettleFleet(int slots)
+    {
+        this(slots, KettleScheduler.shared());
+    }
+
+    public KettleFleet(int slots, ScheduledExecutorService scheduler)
+    {
+        if(slots < 1)
+            throw new IllegalArgumentException("A fleet needs at least one slot");
+        this.slots = slots;
+        this.maxActive = slots - 1;
+        this.scheduler = scheduler;
+        //the fleet listeners only record timestamps, the scheduler thread is enough
+        this.listenerExecutor = scheduler;
+    }
+
+    public int getSlots()
+    {
+        return slots;
+    }
+
+    public synchronized void setRotationInterval(long millis)
+    {
+        rotationMillis = millis;
+        if(rotation != null)
+        {
+            rotation.cancel(false);
+            rotation = null;
+            start();
+        }
+    }
+
+    public synchronized long getRotationInterval()
+    {
+        return rotationMillis;
+    }
+
+    //Slots active kettles may hold ahead of the rotation, the others rotate by age. Defaults to all but one.
+    public synchronized void setMaxActive(int maxActive)
+    {
+        if(maxActive < 0 || maxActive > slots)
+            throw new IllegalArgumentException("Between 0 and " + slots + " slots can be kept for active kettles, got " + maxActive);
+        this.maxActive = maxActive;
+    }
+
+    public synchronized int getMaxActive()
+    {
+        return maxActive;
+    }
+
+    public synchronized void add(KettleClient client)
+    {
+        if(!members.containsKey(client.getMac()))
+            members.put(client.getMac(), new Member(client));
+    }
+
+    //Removes the kettle and gives up its slot, the client is closed but not destroyed
+    public void remove(String mac)
+    {
+        Member member;
+        synchronized (this)
+        {
+            member = members.remove(mac);
+            if(member != null)
+                member.holding = false;
+        }
+        if(member != null)
+            revoke(member);
+    }
+
+    public synchronized KettleClient get(String mac)
+    {
+        Member member = members.get(mac);
+        return member == null ? null : member.client;
+    }
+
+    public synchronized int size()
+    {
+        return members.size();
+    }
+
+    //Computes the handshake state of every kettle up front, see KettleCipher.precompute
+    public int precomputeAuth(ExecutorService executor) throws InterruptedException
+    {
+        List<KettleClient> clients = new ArrayList<>();
+        synchronized (this)
+        {
+            for(Member member : members.values())
+                clients.add(member.client);
+        }
+        return KettleCipher.precompute(clients, executor);
+    }
+
+    //Slots handed out, a kettle holding one may still be connecting
+    public synchronized int getSlotsInUse()
+    {
+        int used = 0;
+        for(Member member : members.values())
+        {
+            if(member.connected())
+                used++;
+        }
+        return used;
+    }
+
+    //Hands out the slots now and then every rotation interval
+    public synchronized void start()
+    {
+        if(rotation != null)
+            return;
+        rotation = scheduler.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                rotate();
+            }
+        }, 0, rotationMillis, TimeUnit.MILLISECONDS);
+    }
+
+    //Stops rotating and closes every kettle holding a slot
+    public void stop()
+    {
+        List<Member> connected = new ArrayList<>();
+        synchronized (this)
+        {
+            if(rotation != null)
+                rotation.cancel(false);
+            rotation = null;
+            for(Member member : members.values())
+            {
+                if(member.connected())
+                {
+                    member.holding = false;
+                    connected.add(member);
+                }
+            }
+        }
+        for(Member member : connected)
+            revoke(member);
+    }
+
+    public synchronized List<Stats> stats()
+    {
+        long now = System.currentTimeMillis();
+        List<Stats> stats = new ArrayList<>(members.size());
+        for(Member member : members.values())
+        {
+            stats.add(new Stats(member.client.getMac(), member.connected(), member.active,
+                    member.lastStatusAt == 0 ? -1 : now - member.lastStatusAt, member.statusFrames, member.grants));
+        }
+        return stats;
+    }
+
+    //Age of the most out of date kettle, -1 while any kettle never reported
+    public synchronized long getMaxStaleness()
+    {
+        long now = System.currentTimeMillis();
+        long max = 0;
+        for(Member member : members.values())
+        {
+            if(member.lastStatusAt == 0)
+                return -1;
+            max = Math.max(max, now - member.lastStatusAt);
+        }
+        return max;
+    }
+
+    void rotate()
+    {
+        List<Member> revoke = new ArrayList<>();
+        List<Member> grant = new ArrayList<>();
+        synchronized (this)
+        {
+            long now = System.currentTimeMillis();
+            int free = slots;
+            int activeFree = maxActive;
+            List<Member> candidates = new ArrayList<>(members.size());
+            for(Member member : members.values())
+            {
+                //a fresh slot is kept until the kettle had a fair chance to connect and report
+                if(member.connected() && now - member.grantedAt < rotationMillis)
+                {
+                    free--;
+                    if(member.active)
+                        activeFree--;
+                }
+                else
+                    candidates.add(member);
+            }
+
+            //active kettles up to their share, then everyone else by age
+            Collections.sort(candidates, PRIORITY);
+            List<Member> chosen = new ArrayList<>(free);
+            List<Member> rest = new ArrayList<>(candidates.size());
+            for(Member member : candidates)
+            {
+                if(member.active && activeFree > 0 && chosen.size() < free)
+                {
+                    chosen.add(member);
+                    activeFree--;
+                }
+                else
+                    rest.add(member);
+            }
+            Collections.sort(rest, AGE);
+            for(Member member : rest)
+            {
+                if(chosen.size() < free)
+                    chosen.add(member);
+                else if(member.connected())
+                {
+                    member.holding = false;
+                    revoke.add(member);
+                }
+            }
+            for(Member member : chosen)
+            {
+                if(!member.connected())
+                {
+                    member.holding = true;
+                    member.grantedAt = now;
+                    member.grants++;
+                    grant.add(member);
+                }
+            }
+        }
+
+        //revoked first, so the stack has the slots back before the next connects
+        for(Member member : revoke)
+            revoke(member);
+        for(Member member : grant)
+            grant(member);
+    }
+
+    private void grant(final Member member)
+    {
+        IOnData<byte[]> listener = new IOnData<byte[]>()
+        {
+            @Override
+            public void onData(byte[] val)
+            {
+                if(val.length == 0)
+                    return;
+                synchronized (KettleFleet.this)
+                {
+                    member.lastStatusAt = System.currentTimeMillis();
+                    member.statusFrames++;
+                    member.active = (val[0] & 0xff) != KettleStatus.Action.IDLE.code;
+                }
+            }
+        };
+        StatusSubscription subscription = member.client.subscribe(listener, listenerExecutor, 1, StatusSubscription.Overflow.LATEST_ONLY);
+        boolean holding;
+        synchronized (this)
+        {
+            holding = member.holding;
+            if(holding)
+                member.subscription = subscription;
+        }
+        //revoked while subscribing, the revoke found no subscription to give up
+        if(!holding)
+        {
+            member.client.close();
+            subscription.cancel();
+        }
+    }
+
+    private void revoke(Member member)
+    {
+        StatusSubscription subscription;
+        synchronized (this)
+        {
+            subscription = member.subscription;
+            member.subscription = null;
+        }
+        if(subscription == null)
+            return;
+        //closed first, the cancel then finds no session to keep open on idle
+        member.client.close();
+        subscription.cancel();
+    }
+}
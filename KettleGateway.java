@@ -0,0 +1,575 @@
+package org.sombrenuit.dk.kettleboy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Serves the status of the kettles it owns to any number of local clients over one non blocking
+ * socket, see {@link GatewayProtocol} for the framing and {@link GatewayClient} for a client.
+ * A client asks for a snapshot, answered from the kettle's cache while it is fresh, or subscribes
+ * and gets every new frame pushed. However many clients watch a kettle, it has one bluetooth
+ * subscription, held while at least one client is subscribed.
+ * Each kettle's latest STATUS message is encoded once into an immutable array behind an atomic
+ * reference, every connection copies from that same array into its own write buffer. A message only
+ * replaces one with an older frame time, a slow snapshot read never hides a newer push. A client that
+ * reads slower than the kettle notifies only gets the newest frame once it catches up, so a stuck
+ * client costs one buffer and never holds up the others.
+ * Sockets are only touched by the gateway thread, status frames and completed reads are handed to
+ * it through a queue.
+ */
+public class KettleGateway
+{
+    public static final int DEFAULT_WRITE_BUFFER = 4096;
+    //unread replies a client may have before it is dropped, pushes never pile up
+    private static final int MAX_BACKLOG = 64;
+    private static final int READ_BUFFER = 256;
+
+    private final class Kettle
+    {
+        final KettleClient client;
+        final long mac;
+        //encoded STATUS message, replaced whole and never changed, null before the first frame
+        final AtomicReference<byte[]> snapshot = new AtomicReference<>();
+        final AtomicBoolean fanOutQueued = new AtomicBoolean();
+        //gateway thread only
+        final List<Connection> watchers = new ArrayList<>();
+        StatusSubscription subscription;
+
+        Kettle(KettleClient client)
+        {
+            this.client = client;
+            this.mac = client.getMacKey();
+        }
+    }
+
+    private final class Connection
+    {
+        final SocketChannel channel;
+        SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+        final ByteBuffer out;
+        final ArrayDeque<byte[]> backlog = new ArrayDeque<>();
+        final List<Kettle> subscribed = new ArrayList<>();
+        //subscribed kettles with a snapshot this connection was not sent yet
+        final List<Kettle> dirty = new ArrayList<>();
+        boolean closed;
+
+        Connection(SocketChannel channel)
+        {
+            this.channel = channel;
+            this.out = ByteBuffer.allocate(writeBufferSize);
+        }
+    }
+
+    private final SocketAddress address;
+    private final int writeBufferSize;
+    private final ConcurrentHashMap<Long, Kettle> kettles = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private volatile Selector selector;
+    private ServerSocketChannel server;
+    private Thread thread;
+    private volatile boolean running;
+    //gateway thread only
+    private final List<Connection> connections = new ArrayList<>();
+    private volatile int connectionCount;
+    private volatile long pushed;
+
+    public KettleGateway(SocketAddress address)
+    {
+        this(address, DEFAULT_WRITE_BUFFER);
+    }
+
+    public KettleGateway(SocketAddress address, int writeBufferSize)
+    {
+        if(writeBufferSize < GatewayProtocol.STATUS_SIZE)
+            throw new IllegalArgumentException("The write buffer must hold at least one status message");
+        this.address = address;
+        this.writeBufferSize = writeBufferSize;
+    }
+
+    //Kettles can be added while the gateway runs, a cached status is served right away
+    public void add(KettleClient client)
+    {
+        Kettle kettle = new Kettle(client);
+        StatusCache cache = client.getCache();
+        byte[] frame = cache.getFrame();
+        if(frame != null)
+            kettle.snapshot.set(encode(kettle, cache.getUpdatedAt(), frame));
+        kettles.put(kettle.mac, kettle);
+    }
+
+    //Subscribers of the kettle stop getting frames, its bluetooth subscription is cancelled
+    public void remove(String mac)
+    {
+        final Kettle kettle = kettles.remove(StatusJournal.macKey(mac));
+        if(kettle == null)
+            return;
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for(Connection connection : new ArrayList<>(kettle.watchers))
+                    unwatch(kettle, connection);
+            }
+        });
+    }
+
+    public synchronized void start() throws IOException
+    {
+        if(running)
+            return;
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.bind(address);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                serve();
+            }
+        }, "mikettle-gateway");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    //Closes every connection and cancels the bluetooth subscriptions, the clients stay usable
+    public void stop() throws InterruptedException
+    {
+        Thread serving;
+        synchronized (this)
+        {
+            if(!running)
+                return;
+            running = false;
+            serving = thread;
+            selector.wakeup();
+        }
+        serving.join();
+    }
+
+    //Where the gateway listens, with the port picked by the system when it was bound to port 0
+    public synchronized InetSocketAddress getAddress() throws IOException
+    {
+        if(!running)
+            throw new IllegalStateException("The gateway is not running, its address is only known between start and stop");
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    public int getConnections()
+    {
+        return connectionCount;
+    }
+
+    //Status messages pushed to subscribers so far
+    public long getPushed()
+    {
+        return pushed;
+    }
+
+    private void post(Runnable task)
+    {
+        tasks.add(task);
+        Selector current = selector;
+        if(current != null)
+            current.wakeup();
+    }
+
+    //A read answered from the cache completes on the gateway thread, it is answered without a wakeup
+    private void execute(Runnable task)
+    {
+        if(Thread.currentThread() == thread)
+            task.run();
+        else
+            post(task);
+    }
+
+    private void serve()
+    {
+        try
+        {
+            while(running)
+            {
+                selector.select();
+                Runnable task;
+                while((task = tasks.poll()) != null)
+                    task.run();
+
+                for(SelectionKey key : selector.selectedKeys())
+                {
+                    if(!key.isValid())
+                        continue;
+                    if(key.isAcceptable())
+                        accept();
+                    else
+                    {
+                        Connection connection = (Connection) key.attachment();
+                        if(key.isReadable())
+                            read(connection);
+                        if(!connection.closed && key.isWritable())
+                            flush(connection);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        }
+        catch (IOException e)
+        {
+            //the selector itself failed, nothing can be served anymore
+            running = false;
+        }
+        finally
+        {
+            shutdown();
+        }
+    }
+
+    private void shutdown()
+    {
+        for(Connection connection : new ArrayList<>(connections))
+            close(connection);
+        tasks.clear();
+        try
+        {
+            server.close();
+            selector.close();
+        }
+        catch (IOException e)
+        {
+            //closing anyway
+        }
+    }
+
+    private void accept() throws IOException
+    {
+        SocketChannel channel;
+        while((channel = server.accept()) != null)
+        {
+            channel.configureBlocking(false);
+            //status messages are small and latency is the point, do not wait to fill a segment
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+            connectionCount = connections.size();
+        }
+    }
+
+    private void read(Connection connection)
+    {
+        int read;
+        try
+        {
+            read = connection.channel.read(connection.in);
+        }
+        catch (IOException e)
+        {
+            read = -1;
+        }
+        if(read < 0)
+        {
+            close(connection);
+            return;
+        }
+
+        ByteBuffer in = connection.in;
+        in.flip();
+        while(in.remaining() >= GatewayProtocol.HEADER_SIZE)
+        {
+            int start = in.position();
+            int type = in.get(start) & 0xff;
+            int length = in.getShort(start + 1) & 0xffff;
+            if(length > GatewayProtocol.MAX_REQUEST_BODY)
+            {
+                close(connection);
+                return;
+            }
+            if(in.remaining() < GatewayProtocol.HEADER_SIZE + length)
+                break;
+            in.position(start + GatewayProtocol.HEADER_SIZE);
+            handle(connection, type, length, in);
+            in.position(start + GatewayProtocol.HEADER_SIZE + length);
+            if(connection.closed)
+                return;
+        }
+        in.compact();
+        flush(connection);
+    }
+
+    private void handle(Connection connection, int type, int length, ByteBuffer body)
+    {
+        if(type == GatewayProtocol.LIST)
+        {
+            long[] macs = new long[kettles.size()];
+            int count = 0;
+            for(Long mac : kettles.keySet())
+            {
+                if(count == macs.length)
+                    break;
+                macs[count++] = mac;
+            }
+            if(count < macs.length)
+                macs = Arrays.copyOf(macs, count);
+            reply(connection, GatewayProtocol.kettles(macs));
+            return;
+        }
+        if(length != GatewayProtocol.MAC_SIZE)
+        {
+            reply(connection, GatewayProtocol.error(0, GatewayProtocol.ERROR_BAD_REQUEST));
+            return;
+        }
+        long mac = GatewayProtocol.getMac(body);
+        Kettle kettle = kettles.get(mac);
+        if(kettle == null)
+        {
+            reply(connection, GatewayProtocol.error(mac, GatewayProtocol.ERROR_UNKNOWN_KETTLE));
+            return;
+        }
+        switch (type)
+        {
+            case GatewayProtocol.SNAPSHOT:
+                snapshot(kettle, connection);
+                break;
+            case GatewayProtocol.SUBSCRIBE:
+                watch(kettle, connection);
+                break;
+            case GatewayProtocol.UNSUBSCRIBE:
+                unwatch(kettle, connection);
+                break;
+            default:
+                reply(connection, GatewayProtocol.error(mac, GatewayProtocol.ERROR_BAD_REQUEST));
+        }
+    }
+
+    //A fresh cached status answers without touching the radio, see KettleClient.status
+    private void snapshot(final Kettle kettle, final Connection connection)
+    {
+        kettle.client.status(true, new IOnComplete<KettleStatus>()
+        {
+            @Override
+            public void onComplete(KettleStatus val)
+            {
+                execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        byte[] snapshot = refresh(kettle);
+                        answer(connection, snapshot != null ? snapshot
+                                : GatewayProtocol.error(kettle.mac, GatewayProtocol.ERROR_UNAVAILABLE));
+                    }
+                });
+            }
+
+            @Override
+            public void onError()
+            {
+                execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        answer(connection, GatewayProtocol.error(kettle.mac, GatewayProtocol.ERROR_UNAVAILABLE));
+                    }
+                });
+            }
+        });
+    }
+
+    //Re-encodes the snapshot only when the cache holds a newer frame than the one encoded
+    private byte[] refresh(Kettle kettle)
+    {
+        StatusCache cache = kettle.client.getCache();
+        long updatedAt = cache.getUpdatedAt();
+        byte[] snapshot = kettle.snapshot.get();
+        if(snapshot != null && time(snapshot) >= updatedAt)
+            return snapshot;
+        byte[] frame = cache.getFrame();
+        if(frame == null)
+            return snapshot;
+        return install(kettle, encode(kettle, updatedAt, frame));
+    }
+
+    //Replaces the snapshot unless a push with a newer frame got there first, returns the one in place
+    private static byte[] install(Kettle kettle, byte[] snapshot)
+    {
+        long time = time(snapshot);
+        while(true)
+        {
+            byte[] current = kettle.snapshot.get();
+            if(current != null && time(current) > time)
+                return current;
+            if(kettle.snapshot.compareAndSet(current, snapshot))
+                return snapshot;
+        }
+    }
+
+    private static long time(byte[] snapshot)
+    {
+        return ByteBuffer.wrap(snapshot).getLong(GatewayProtocol.HEADER_SIZE + GatewayProtocol.MAC_SIZE);
+    }
+
+    //The eta goes along as of the frame time, clients count it down from there
+    private static byte[] encode(Kettle kettle, long time, byte[] frame)
+    {
+        EtaEstimator eta = kettle.client.getEstimator();
+        if(eta == null)
+            return GatewayProtocol.status(kettle.mac, time, frame);
+        return GatewayProtocol.status(kettle.mac, time, frame, eta.remainingMillis(time), eta.getConfidence());
+    }
+
+    private void watch(final Kettle kettle, Connection connection)
+    {
+        if(connection.subscribed.contains(kettle))
+            return;
+        connection.subscribed.add(kettle);
+        kettle.watchers.add(connection);
+        if(kettle.subscription == null)
+        {
+            kettle.subscription = kettle.client.subscribe(new IOnData<byte[]>()
+            {
+                @Override
+                public void onData(byte[] val)
+                {
+                    publish(kettle, val);
+                }
+            });
+        }
+        //the latest known status right away, the next frame follows when it comes
+        if(kettle.snapshot.get() != null)
+            markDirty(connection, kettle);
+    }
+
+    private void unwatch(Kettle kettle, Connection connection)
+    {
+        connection.subscribed.remove(kettle);
+        connection.dirty.remove(kettle);
+        kettle.watchers.remove(connection);
+        if(kettle.watchers.isEmpty() && kettle.subscription != null)
+        {
+            kettle.subscription.cancel();
+            kettle.subscription = null;
+        }
+    }
+
+    //On a listener thread: one encode per frame, however many clients watch
+    private void publish(final Kettle kettle, byte[] frame)
+    {
+        install(kettle, encode(kettle, System.currentTimeMillis(), frame));
+        //frames arriving before the gateway thread got to the last one are covered by the same fan out
+        if(!kettle.fanOutQueued.compareAndSet(false, true))
+            return;
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                kettle.fanOutQueued.set(false);
+                for(Connection connection : kettle.watchers)
+                    markDirty(connection, kettle);
+                for(int i = kettle.watchers.size() - 1; i >= 0; i--)
+                    flush(kettle.watchers.get(i));
+            }
+        });
+    }
+
+    private void markDirty(Connection connection, Kettle kettle)
+    {
+        if(!connection.dirty.contains(kettle))
+            connection.dirty.add(kettle);
+    }
+
+    private void reply(Connection connection, byte[] message)
+    {
+        connection.backlog.add(message);
+        if(connection.backlog.size() > MAX_BACKLOG)
+            close(connection);
+    }
+
+    private void answer(Connection connection, byte[] message)
+    {
+        if(connection.closed)
+            return;
+        reply(connection, message);
+        if(!connection.closed)
+            flush(connection);
+    }
+
+    //Fills the write buffer with replies first, then the newest snapshot of each dirty kettle
+    private void flush(Connection connection)
+    {
+        ByteBuffer out = connection.out;
+        while(!connection.backlog.isEmpty() && out.remaining() >= connection.backlog.peek().length)
+            out.put(connection.backlog.poll());
+        if(connection.backlog.isEmpty())
+        {
+            for(int i = connection.dirty.size() - 1; i >= 0; i--)
+            {
+                byte[] snapshot = connection.dirty.get(i).snapshot.get();
+                if(out.remaining() < snapshot.length)
+                    break;
+                out.put(snapshot);
+                connection.dirty.remove(i);
+                pushed++;
+            }
+        }
+
+        out.flip();
+        try
+        {
+            connection.channel.write(out);
+        }
+        catch (IOException e)
+        {
+            close(connection);
+            return;
+        }
+        finally
+        {
+            out.compact();
+        }
+        boolean more = out.position() > 0 || !connection.backlog.isEmpty() || !connection.dirty.isEmpty();
+        connection.key.interestOps(more ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    private void close(Connection connection)
+    {
+        if(connection.closed)
+            return;
+        connection.closed = true;
+        for(Kettle kettle : new ArrayList<>(connection.subscribed))
+            unwatch(kettle, connection);
+        connection.backlog.clear();
+        if(connection.key != null)
+            connection.key.cancel();
+        try
+        {
+            connection.channel.close();
+        }
+        catch (IOException e)
+        {
+            //already gone
+        }
+        connections.remove(connection);
+        connectionCount = connections.size();
+    }
+}
@@ -0,0 +1,42 @@
+package org.sombrenuit.dk.kettleboy;
+
+/**
+ * Receives timings and counts from the hot paths of a {@link KettleClient}, see
+ * {@link KettleClient#setMetrics}. Without one installed nothing is measured, not even the clock is read.
+ * Calls come from the bluetooth, scheduler and listener threads, some with client locks held, so an
+ * implementation must be quick, thread safe and must not call back into the client.
+ * {@link MetricsRecorder} is a lock free implementation.
+ */
+public interface KettleMetrics
+{
+    enum Phase
+    {
+        //connect() until the link is up
+        CONNECT,
+        //link up until the services are discovered
+        DISCOVER,
+        //auth init until the plain text version was read back
+        AUTH,
+        //enabling the aa02 status notifications
+        SUBSCRIBE,
+        //asking for the status stream until the first frame arrived
+        FIRST_STATUS
+    }
+
+    void onPhase(String mac, Phase phase, long nanos, boolean success);
+
+    //A phase that succeeded while the link ran with the named ConnectionProfile, to compare profiles
+    void onProfile(String mac, String profile, Phase phase, long nanos);
+
+    //A status notification arrived
+    void onNotification(String mac);
+
+    //Wait of a status frame between arrival and its subscription's executor starting the listener
+    void onDispatch(String mac, long nanos);
+
+    //A GATT callback came back with a status other than GATT_SUCCESS
+    void onGattError(String mac, int status);
+
+    //An operation is sent again after an error or a timeout
+    void onRetry(String mac);
+}
@@ -0,0 +1,192 @@
+package org.sombrenuit.dk.kettleboy;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+//Pure java part of the kettle protocol, kept free of android types so it can run on a plain jvm
+final class KettleProtocol
+{
+    static final byte[] _KEY1 = new byte[]{(byte) 0x90, (byte) 0xCA, (byte) 0x85, (byte) 0xDE};
+    static final byte[] _KEY2 = new byte[]{(byte) 0x92, (byte) 0xAB, (byte) 0x54, (byte) 0xFA};
+
+    static final byte[] _SUBSCRIBE_TRUE = new byte[] { 0x01, 0x00 };
+
+    //16 bit short uuids, bits 32..47 of the full bluetooth base uuid
+    static final int UUID_SERVICE_AUTH = 0xfe95;
+    static final int UUID_SERVICE_HARDWARE = 0x180a;
+    static final int UUID_SERVICE_DATA = 0x4736;
+
+    static final int UUID_NOTIFICATION_DESCRIPTOR = 0x2902;
+
+    static final int UUID_AUTH_INIT = 0x0010;
+    static final int UUID_AUTH = 0x0001;
+    static final int UUID_VERSION = 0x0004;
+    static final int UUID_NAME = 0x2a24;
+    static final int UUID_FIRMWARE = 0x2a26;
+    static final int UUID_MCU_VERSION = 0x2a28;
+    static final int UUID_SETUP = 0xaa01;
+    static final int UUID_STATUS = 0xaa02;
+    static final int UUID_TIME = 0xaa04;
+    static final int UUID_BOIL_MODE = 0xaa05;
+
+    //limits of the setup commands, as the kettle app offers them
+    static final int KEEP_WARM_MIN_TEMPERATURE = 40;
+    static final int KEEP_WARM_MAX_TEMPERATURE = 90;
+    static final int KEEP_WARM_MAX_MINUTES = 12 * 60;
+
+    private KettleProtocol()
+    {
+    }
+
+    //aa01: keep warm type, keep warm temperature
+    static byte[] setupValue(KettleStatus.KeepWarmType type, int temperature)
+    {
+        if(temperature < KEEP_WARM_MIN_TEMPERATURE || temperature > KEEP_WARM_MAX_TEMPERATURE)
+            throw new IllegalArgumentException("Keep warm temperature must be between " + KEEP_WARM_MIN_TEMPERATURE
+                    + " and " + KEEP_WARM_MAX_TEMPERATURE + ", got " + temperature);
+        return new byte[]{(byte) type.code, (byte) temperature};
+    }
+
+    //aa04: keep warm duration in half hours
+    static byte[] timeValue(int minutes)
+    {
+        if(minutes < 30 || minutes > KEEP_WARM_MAX_MINUTES || minutes % 30 != 0)
+            throw new IllegalArgumentException("Keep warm time must be a multiple of 30 minutes up to "
+                    + KEEP_WARM_MAX_MINUTES + ", got " + minutes);
+        return new byte[]{(byte) (minutes / 30)};
+    }
+
+    //aa05: 1 turns the kettle off after boiling, 0 keeps it warm
+    static byte[] boilModeValue(boolean turnOffAfterBoil)
+    {
+        return new byte[]{(byte) (turnOffAfterBoil ? 1 : 0)};
+    }
+
+    static HashMap<String, String> parse_data(byte []data)
+    {
+        KettleStatus status = KettleStatus.decode(data);
+        return status == null ? null : status.toMap();
+    }
+
+    static int bytes_to_int(byte[] bytes)
+    {
+        int result = 0;
+        for(byte b : bytes)
+        {
+            result = result * 256 + (b & 0xff);
+        }
+        return result;
+    }
+
+
+    //00000010-0000-1000-8000-00805f9b34fb
+    static boolean checkUUID(String uuid, String smallVal)
+    {
+        if(uuid == null || uuid.isEmpty() || smallVal == null || smallVal.isEmpty()){
+            //// TODO: 29.07.2020 return some err
+            return false;
+        }
+
+        String substr = uuid.substring(4, 8);
+
+        return smallVal.equalsIgnoreCase(substr);
+
+    }
+
+    static int shortUuid(UUID uuid)
+    {
+        return (int) (uuid.getMostSignificantBits() >>> 32) & 0xffff;
+    }
+
+    static byte[] generateRandomToken()
+    {
+        return new byte[] { 0x01, 0x5C, (byte) 0xCB, (byte) 0xA8, (byte) 0x80, 0x0A, (byte) 0xBD, (byte) 0xC1, 0x2E, (byte) 0xB8, (byte) 0xED, (byte) 0x82};
+    }
+
+    static byte[] parseToken(String token)
+    {
+        if(token.length() != 24)
+            throw new IllegalArgumentException("Token must be 24 hex digits: " + token);
+        byte[] bytes = new byte[12];
+        for(int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(token.substring(i * 2, i * 2 + 2), 16);
+        return bytes;
+    }
+
+    static byte[] reverseMac(String mac)
+    {
+        String[] parts = mac.split(":");
+        byte[] reversedMac = new byte[parts.length];
+        for(int i = 1; i < parts.length + 1; i++)
+        {
+            reversedMac[i - 1] = Integer.decode("0x" + parts[parts.length - i]).byteValue();
+        }
+
+        return reversedMac;
+    }
+
+    static byte[] mixA(byte []mac, byte productID)
+    {
+        return new byte[] { mac[0], mac[2], mac[5], (byte) (productID & 0xff), (byte) (productID & 0xff), mac[4], mac[5], mac[1] };
+    }
+
+    static byte[] mixB(byte []mac, byte productID)
+    {
+        return new byte[] { mac[0], mac[2], mac[5], (byte) ((productID >> 8) & 0xff), mac[4], mac[0], mac[5], (byte) (productID & 0xff)};
+    }
+
+    static byte[] _cipherInit(byte[] key)
+    {
+        byte[] perm = new byte[256];
+        for(int i = 0; i < 256; i++)
+        /*byte[] perm = new byte[key.length];
+        for(int i = 0; i < perm.length; i++)*/
+        {
+            perm[i] = (byte) (i & 0xff);
+        }
+        int keyLen = key.length;
+        int j = 0;
+        for(int i = 0; i < perm.length; i++)
+        {
+            j += perm[i] + key[i % keyLen];
+            j = j & 0xff;
+            byte tempI = perm[i];
+            byte tempJ = perm[j];
+            perm[i] = tempJ;
+            perm[j] = tempI;
+        }
+        return perm;
+    }
+
+    static byte[] _cipherCrypt(byte[] input, byte[] permP)
+    {
+        int index1 = 0;
+        int index2 = 0;
+        byte[] output = new byte[input.length];
+        byte[] perm = permP;
+
+        for(int i = 0; i < input.length; i++)
+        {
+            index1 = index1 + 1;
+            index1 = index1 & 0xff;
+            index2 += perm[index1];
+            index2 = index2 & 0xff;
+            byte tempI1 = perm[index1];
+            byte tempI2 = perm[index2];
+            perm[index1] = tempI2;
+            perm[index2] = tempI1;
+            int idx = perm[index1] + perm[index2];
+            idx = idx & 0xff;
+            byte outputByte = (byte) (input[i] ^ perm[idx]);
+            output[i] = (byte) (outputByte & 0xff);
+        }
+
+        return output;
+    }
+
+    static byte[] cipher(byte[] key, byte[] input)
+    {
+        byte[] perm = _cipherInit(key);
+        return _cipherCrypt(input, perm);
+    }
+}
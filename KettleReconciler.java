@@ -0,0 +1,229 @@
+package org.sombrenuit.dk.kettleboy;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Keeps a kettle at a {@link DesiredState} with as few writes as possible.
+ * The keep warm setup is part of every status frame, so it is only written when a frame shows it
+ * differs, which also brings the kettle back after someone changed it with the buttons.
+ * The keep warm time and boil mode cannot be read back. The kettle keeps them across connections,
+ * so they are written once and again only when the target changes. While started the reconciler
+ * holds a status subscription, so the client reconnects and converges again after a drop.
+ */
+public class KettleReconciler
+{
+    //how long a written setup gets to show up in the status before it is written again
+    public static final long DEFAULT_SETTLE_MILLIS = 3000;
+
+    private final KettleClient client;
+    private final ScheduledExecutorService scheduler;
+    private long settleMillis = DEFAULT_SETTLE_MILLIS;
+
+    private DesiredState desired = DesiredState.none();
+    private StatusSubscription subscription;
+
+    private boolean setupInFlight;
+    private long setupSentAt;
+    private boolean timeInFlight;
+    //last value the kettle acknowledged, 0 and null before the first write
+    private int timeValue;
+    private boolean boilInFlight;
+    private Boolean boilValue;
+
+    private long writes;
+    private long matched;
+
+    private final Runnable reconcile = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            reconcile();
+        }
+    };
+
+    public KettleReconciler(KettleClient client)
+    {
+        this(client, KettleScheduler.shared());
+    }
+
+    public KettleReconciler(KettleClient client, ScheduledExecutorService scheduler)
+    {
+        this.client = client;
+        this.scheduler = scheduler;
+    }
+
+    public void setDesired(DesiredState state)
+    {
+        synchronized (this)
+        {
+            desired = state;
+        }
+        scheduler.execute(reconcile);
+    }
+
+    public synchronized DesiredState getDesired()
+    {
+        return desired;
+    }
+
+    public synchronized void setSettleTime(long millis)
+    {
+        settleMillis = millis;
+    }
+
+    public void start()
+    {
+        synchronized (this)
+        {
+            if(subscription != null)
+                return;
+        }
+        StatusSubscription started = client.subscribe(new IOnData<byte[]>()
+        {
+            @Override
+            public void onData(byte[] val)
+            {
+                reconcile();
+            }
+        }, scheduler, 1, StatusSubscription.Overflow.LATEST_ONLY);
+        synchronized (this)
+        {
+            subscription = started;
+        }
+    }
+
+    public void stop()
+    {
+        StatusSubscription stopped;
+        synchronized (this)
+        {
+            stopped = subscription;
+            subscription = null;
+        }
+        if(stopped != null)
+            stopped.cancel();
+    }
+
+    //Writes sent since the start
+    public synchronized long getWrites()
+    {
+        return writes;
+    }
+
+    //Status frames that already matched the target, no write was needed
+    public synchronized long getMatched()
+    {
+        return matched;
+    }
+
+    void reconcile()
+    {
+        KettleStatus status = client.getCache().peek();
+        if(status == null || !client.isAuthenticated())
+            return;
+
+        boolean writeSetup = false;
+        boolean writeTime = false;
+        boolean writeBoil = false;
+        final DesiredState target;
+        synchronized (this)
+        {
+            target = desired;
+            long now = System.currentTimeMillis();
+            if(!target.matches(status) && !setupInFlight && now - setupSentAt >= settleMillis)
+            {
+                writeSetup = true;
+                setupInFlight = true;
+                setupSentAt = now;
+            }
+            if(target.keepWarmMinutes > 0 && !timeInFlight && timeValue != target.keepWarmMinutes)
+            {
+                writeTime = true;
+                timeInFlight = true;
+            }
+            if(target.turnOffAfterBoil != null && !boilInFlight && !target.turnOffAfterBoil.equals(boilValue))
+            {
+                writeBoil = true;
+                boilInFlight = true;
+            }
+            if(!writeSetup && !writeTime && !writeBoil)
+                matched++;
+        }
+
+        if(writeSetup)
+        {
+            client.setKeepWarm(target.keepWarmType, target.keepWarmTemperature, new IOnComplete<Void>()
+            {
+                @Override
+                public void onComplete(Void val)
+                {
+                    synchronized (KettleReconciler.this)
+                    {
+                        setupInFlight = false;
+                        writes++;
+                    }
+                }
+
+                @Override
+                public void onError()
+                {
+                    synchronized (KettleReconciler.this)
+                    {
+                        setupInFlight = false;
+                    }
+                }
+            });
+        }
+        if(writeTime)
+        {
+            client.setKeepWarmTime(target.keepWarmMinutes, new IOnComplete<Void>()
+            {
+                @Override
+                public void onComplete(Void val)
+                {
+                    synchronized (KettleReconciler.this)
+                    {
+                        timeInFlight = false;
+                        timeValue = target.keepWarmMinutes;
+                        writes++;
+                    }
+                }
+
+                @Override
+                public void onError()
+                {
+                    synchronized (KettleReconciler.this)
+                    {
+                        timeInFlight = false;
+                    }
+                }
+            });
+        }
+        if(writeBoil)
+        {
+            client.setTurnOffAfterBoil(target.turnOffAfterBoil, new IOnComplete<Void>()
+            {
+                @Override
+                public void onComplete(Void val)
+                {
+                    synchronized (KettleReconciler.this)
+                    {
+                        boilInFlight = false;
+                        boilValue = target.turnOffAfterBoil;
+                        writes++;
+                    }
+                }
+
+                @Override
+                public void onError()
+                {
+                    synchronized (KettleReconciler.this)
+                    {
+                        boilInFlight = false;
+                    }
+                }
+            });
+        }
+    }
+}
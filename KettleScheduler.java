@@ -0,0 +1,74 @@
+package org.sombrenuit.dk.kettleboy;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+//Shared timer thread for deadlines and retries when the caller does not supply a scheduler,
+//shared threads for listeners that do not bring their own executor, and the pool event loops run on
+final class KettleScheduler
+{
+    private static ScheduledExecutorService shared;
+    private static ExecutorService listeners;
+    private static ExecutorService loops;
+
+    private KettleScheduler()
+    {
+    }
+
+    static synchronized ScheduledExecutorService shared()
+    {
+        if(shared == null)
+        {
+            shared = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "mikettle-scheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return shared;
+    }
+
+    static synchronized ExecutorService listeners()
+    {
+        if(listeners == null)
+        {
+            listeners = Executors.newCachedThreadPool(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "mikettle-listener");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return listeners;
+    }
+
+    //One thread per core, every kettle's event loop takes turns on them
+    static synchronized ExecutorService loops()
+    {
+        if(loops == null)
+        {
+            loops = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "mikettle-loop");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return loops;
+    }
+}
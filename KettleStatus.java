@@ -0,0 +1,313 @@
+package org.sombrenuit.dk.kettleboy;
+
+import java.util.HashMap;
+
+public final class KettleStatus
+{
+    public static final String KEY_ACTION = "action";
+    public static final String KEY_MODE = "mode";
+    public static final String KEY_SET_TEMPERATURE = "set temperature";
+    public static final String KEY_CURRENT_TEMPERATURE = "current temperature";
+    public static final String KEY_KW_TYPE = "keep warm type";
+    public static final String KEY_KW_TIME = "keep warm time";
+
+    //action, mode, 2 unknown bytes, set temp, current temp, kw type, kw time (2 bytes)
+    public static final int FRAME_LENGTH = 9;
+
+    //bits of the mask returned by diff
+    public static final int CHANGED_ACTION = 1;
+    public static final int CHANGED_MODE = 1 << 1;
+    public static final int CHANGED_SET_TEMPERATURE = 1 << 2;
+    public static final int CHANGED_CURRENT_TEMPERATURE = 1 << 3;
+    public static final int CHANGED_KW_TYPE = 1 << 4;
+    public static final int CHANGED_KW_TIME = 1 << 5;
+    public static final int CHANGED_ALL = (1 << 6) - 1;
+
+    public enum Action
+    {
+        IDLE(0, "idle"),
+        HEATING(1, "heating"),
+        COOLING(2, "cooling"),
+        KEEPING_WARM(3, "keeping warm");
+
+        private static final Action[] BY_CODE = new Action[256];
+        static
+        {
+            for(Action action : values())
+                BY_CODE[action.code] = action;
+        }
+
+        public final int code;
+        public final String label;
+
+        Action(int code, String label)
+        {
+            this.code = code;
+            this.label = label;
+        }
+
+        public static Action fromCode(int code)
+        {
+            return BY_CODE[code & 0xff];
+        }
+    }
+
+    public enum Mode
+    {
+        NONE(255, "none"),
+        BOIL(1, "boil"),
+        KEEP_WARM(3, "keep warm");
+
+        private static final Mode[] BY_CODE = new Mode[256];
+        static
+        {
+            for(Mode mode : values())
+                BY_CODE[mode.code] = mode;
+        }
+
+        public final int code;
+        public final String label;
+
+        Mode(int code, String label)
+        {
+            this.code = code;
+            this.label = label;
+        }
+
+        public static Mode fromCode(int code)
+        {
+            return BY_CODE[code & 0xff];
+        }
+    }
+
+    public enum KeepWarmType
+    {
+        WARM_UP(0, "warm up"),
+        COOL_DOWN(1, "cool down");
+
+        private static final KeepWarmType[] BY_CODE = new KeepWarmType[256];
+        static
+        {
+            for(KeepWarmType type : values())
+                BY_CODE[type.code] = type;
+        }
+
+        public final int code;
+        public final String label;
+
+        KeepWarmType(int code, String label)
+        {
+            this.code = code;
+            this.label = label;
+        }
+
+        public static KeepWarmType fromCode(int code)
+        {
+            return BY_CODE[code & 0xff];
+        }
+    }
+
+    private int actionCode;
+    private int modeCode;
+    private int setTemperature;
+    private int currentTemperature;
+    private int keepWarmTypeCode;
+    private int keepWarmTime;
+    private long etaMillis = -1;
+    private double etaConfidence;
+
+    public KettleStatus()
+    {
+    }
+
+    /**
+     * Decodes a status frame into {@code into} without allocating.
+     * Returns {@code into} so calls can be chained, or null for a frame shorter than
+     * {@link #FRAME_LENGTH}, {@code into} is left untouched then.
+     * Bytes are read unsigned, the temperatures of the original parse_data were signed bytes.
+     * The frame holds no eta, it is left unknown.
+     */
+    public static KettleStatus decode(byte[] data, KettleStatus into)
+    {
+        if(data == null || data.length < FRAME_LENGTH)
+            return null;
+
+        into.actionCode = data[0] & 0xff;
+        into.modeCode = data[1] & 0xff;
+        into.setTemperature = data[4] & 0xff;
+        into.currentTemperature = data[5] & 0xff;
+        into.keepWarmTypeCode = data[6] & 0xff;
+        into.keepWarmTime = ((data[7] & 0xff) << 8) | (data[8] & 0xff);
+        into.etaMillis = -1;
+        into.etaConfidence = 0;
+        return into;
+    }
+
+    public static KettleStatus decode(byte[] data)
+    {
+        return decode(data, new KettleStatus());
+    }
+
+    //Fields that differ between two raw status frames, 0 when they decode to the same status
+    public static int diff(byte[] previous, byte[] frame)
+    {
+        int changed = 0;
+        if(previous[0] != frame[0])
+            changed |= CHANGED_ACTION;
+        if(previous[1] != frame[1])
+            changed |= CHANGED_MODE;
+        if(previous[4] != frame[4])
+            changed |= CHANGED_SET_TEMPERATURE;
+        if(previous[5] != frame[5])
+            changed |= CHANGED_CURRENT_TEMPERATURE;
+        if(previous[6] != frame[6])
+            changed |= CHANGED_KW_TYPE;
+        if(previous[7] != frame[7] || previous[8] != frame[8])
+            changed |= CHANGED_KW_TIME;
+        return changed;
+    }
+
+    public int diff(KettleStatus other)
+    {
+        int changed = 0;
+        if(actionCode != other.actionCode)
+            changed |= CHANGED_ACTION;
+        if(modeCode != other.modeCode)
+            changed |= CHANGED_MODE;
+        if(setTemperature != other.setTemperature)
+            changed |= CHANGED_SET_TEMPERATURE;
+        if(currentTemperature != other.currentTemperature)
+            changed |= CHANGED_CURRENT_TEMPERATURE;
+        if(keepWarmTypeCode != other.keepWarmTypeCode)
+            changed |= CHANGED_KW_TYPE;
+        if(keepWarmTime != other.keepWarmTime)
+            changed |= CHANGED_KW_TIME;
+        return changed;
+    }
+
+    public void copyFrom(KettleStatus other)
+    {
+        actionCode = other.actionCode;
+        modeCode = other.modeCode;
+        setTemperature = other.setTemperature;
+        currentTemperature = other.currentTemperature;
+        keepWarmTypeCode = other.keepWarmTypeCode;
+        keepWarmTime = other.keepWarmTime;
+        etaMillis = other.etaMillis;
+        etaConfidence = other.etaConfidence;
+    }
+
+    //Set by the client from its EtaEstimator when the frame came in
+    void setEta(long etaMillis, double etaConfidence)
+    {
+        this.etaMillis = etaMillis;
+        this.etaConfidence = etaConfidence;
+    }
+
+    public int getActionCode()
+    {
+        return actionCode;
+    }
+
+    //null when the kettle reports a code we do not know
+    public Action getAction()
+    {
+        return Action.fromCode(actionCode);
+    }
+
+    public int getModeCode()
+    {
+        return modeCode;
+    }
+
+    public Mode getMode()
+    {
+        return Mode.fromCode(modeCode);
+    }
+
+    public int getSetTemperature()
+    {
+        return setTemperature;
+    }
+
+    public int getCurrentTemperature()
+    {
+        return currentTemperature;
+    }
+
+    public int getKeepWarmTypeCode()
+    {
+        return keepWarmTypeCode;
+    }
+
+    public KeepWarmType getKeepWarmType()
+    {
+        return KeepWarmType.fromCode(keepWarmTypeCode);
+    }
+
+    public int getKeepWarmTime()
+    {
+        return keepWarmTime;
+    }
+
+    //Ms until the target temperature as of the frame, 0 once reached, -1 when unknown or not estimated
+    public long getEtaMillis()
+    {
+        return etaMillis;
+    }
+
+    //0 to 1, see EtaEstimator.getConfidence
+    public double getEtaConfidence()
+    {
+        return etaConfidence;
+    }
+
+    //Single value of the parse_data map, without building the map
+    public String value(String key)
+    {
+        if(KEY_ACTION.equals(key))
+        {
+            Action action = getAction();
+            return action == null ? null : action.label;
+        }
+        if(KEY_MODE.equals(key))
+        {
+            Mode mode = getMode();
+            return mode == null ? null : mode.label;
+        }
+        if(KEY_SET_TEMPERATURE.equals(key))
+            return String.valueOf(setTemperature);
+        if(KEY_CURRENT_TEMPERATURE.equals(key))
+            return String.valueOf(currentTemperature);
+        if(KEY_KW_TYPE.equals(key))
+        {
+            KeepWarmType keepWarmType = getKeepWarmType();
+            return keepWarmType == null ? null : keepWarmType.label;
+        }
+        if(KEY_KW_TIME.equals(key))
+            return String.valueOf(keepWarmTime);
+        return null;
+    }
+
+    public HashMap<String, String> toMap()
+    {
+        Action action = getAction();
+        Mode mode = getMode();
+        KeepWarmType keepWarmType = getKeepWarmType();
+
+        HashMap<String, String> map = new HashMap<>();
+        map.put(KEY_ACTION, action == null ? null : action.label);
+        map.put(KEY_MODE, mode == null ? null : mode.label);
+        map.put(KEY_SET_TEMPERATURE, String.valueOf(setTemperature));
+        map.put(KEY_CURRENT_TEMPERATURE, String.valueOf(currentTemperature));
+        map.put(KEY_KW_TYPE, keepWarmType == null ? null : keepWarmType.label);
+        map.put(KEY_KW_TIME, String.valueOf(keepWarmTime));
+        return map;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "KettleStatus{" + toMap() + "}";
+    }
+}
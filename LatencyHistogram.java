@@ -0,0 +1,73 @@
+package org.sombrenuit.dk.kettleboy;
+
+/**
+ * Millisecond latencies in power of two buckets, bucket i holds values below 2^i ms.
+ * Recording is a few instructions and never allocates, percentiles are bucket upper bounds.
+ */
+public class LatencyHistogram
+{
+    private static final int BUCKETS = 32;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long max;
+    private long sum;
+
+    public synchronized void record(long millis)
+    {
+        if(millis < 0)
+            millis = 0;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+        counts[bucket]++;
+        count++;
+        sum += millis;
+        if(millis > max)
+            max = millis;
+    }
+
+    public synchronized long getCount()
+    {
+        return count;
+    }
+
+    public synchronized long getMax()
+    {
+        return max;
+    }
+
+    public synchronized double getMean()
+    {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    //Upper bound of the bucket holding the given percentile (0-100), 0 when nothing was recorded
+    public synchronized long percentile(double percentile)
+    {
+        if(count == 0)
+            return 0;
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts[i];
+            if(seen >= Math.max(1, rank))
+                return Math.min(max, (1L << i) - 1);
+        }
+        return max;
+    }
+
+    public synchronized void reset()
+    {
+        for(int i = 0; i < BUCKETS; i++)
+            counts[i] = 0;
+        count = 0;
+        max = 0;
+        sum = 0;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "count=" + count + " p50=" + percentile(50) + "ms p99=" + percentile(99) + "ms max=" + max + "ms";
+    }
+}
@@ -0,0 +1,265 @@
+package org.sombrenuit.dk.kettleboy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link KettleMetrics} that keeps everything in memory, per kettle mac. Counters are striped
+ * {@link LongAdder}s and latencies {@link ConcurrentHistogram}s, so recording takes no lock and
+ * allocates nothing once a kettle was seen. One recorder can be shared by a whole fleet, phase
+ * latencies are also kept per {@link ConnectionProfile} across all kettles.
+ */
+public class MetricsRecorder implements KettleMetrics
+{
+    //notifications per second are averaged over this many whole seconds
+    public static final int RATE_SECONDS = 10;
+    private static final int RATE_SLOTS = 16;
+
+    public static final class Device
+    {
+        public final String mac;
+        private final ConcurrentHistogram[] phases = new ConcurrentHistogram[Phase.values().length];
+        private final LongAdder[] phaseFailures = new LongAdder[Phase.values().length];
+        private final ConcurrentHistogram dispatch = new ConcurrentHistogram();
+        private final LongAdder notifications = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder gattErrors = new LongAdder();
+        private final AtomicLongArray gattErrorCodes = new AtomicLongArray(256);
+        //codes past a byte, such as GATT_FAILURE 257, keyed by the full code
+        private final ConcurrentHashMap<Integer, LongAdder> otherGattErrorCodes = new ConcurrentHashMap<>();
+        //notifications per second, slot second % RATE_SLOTS, stamped with the second it counts
+        private final AtomicLongArray rateCounts = new AtomicLongArray(RATE_SLOTS);
+        private final AtomicLongArray rateSeconds = new AtomicLongArray(RATE_SLOTS);
+
+        Device(String mac)
+        {
+            this.mac = mac;
+            for(int i = 0; i < phases.length; i++)
+            {
+                phases[i] = new ConcurrentHistogram();
+                phaseFailures[i] = new LongAdder();
+            }
+        }
+
+        //Nanoseconds of the successful runs of a phase
+        public ConcurrentHistogram getPhase(Phase phase)
+        {
+            return phases[phase.ordinal()];
+        }
+
+        public long getPhaseFailures(Phase phase)
+        {
+            return phaseFailures[phase.ordinal()].sum();
+        }
+
+        //Nanoseconds between a status frame's arrival and its listener starting
+        public ConcurrentHistogram getDispatch()
+        {
+            return dispatch;
+        }
+
+        public long getNotifications()
+        {
+            return notifications.sum();
+        }
+
+        //Over the last RATE_SECONDS whole seconds
+        public double getNotificationsPerSecond()
+        {
+            long now = System.currentTimeMillis() / 1000;
+            long total = 0;
+            for(int i = 0; i < RATE_SLOTS; i++)
+            {
+                long second = rateSeconds.get(i);
+                if(second < now && second >= now - RATE_SECONDS)
+                    total += rateCounts.get(i);
+            }
+            return (double) total / RATE_SECONDS;
+        }
+
+        public long getRetries()
+        {
+            return retries.sum();
+        }
+
+        public long getGattErrors()
+        {
+            return gattErrors.sum();
+        }
+
+        //How often the stack answered with the given GATT status
+        public long getGattErrors(int status)
+        {
+            if(status >= 0 && status < 256)
+                return gattErrorCodes.get(status);
+            LongAdder count = otherGattErrorCodes.get(status);
+            return count == null ? 0 : count.sum();
+        }
+
+        void gattError(int status)
+        {
+            gattErrors.increment();
+            if(status >= 0 && status < 256)
+            {
+                gattErrorCodes.incrementAndGet(status);
+                return;
+            }
+            LongAdder count = otherGattErrorCodes.get(status);
+            if(count == null)
+            {
+                LongAdder created = new LongAdder();
+                count = otherGattErrorCodes.putIfAbsent(status, created);
+                if(count == null)
+                    count = created;
+            }
+            count.increment();
+        }
+
+        void notification()
+        {
+            notifications.increment();
+            long second = System.currentTimeMillis() / 1000;
+            int slot = (int) (second % RATE_SLOTS);
+            long stamped = rateSeconds.get(slot);
+            //the first notification of a new second takes the slot over, a race loses a count at most
+            if(stamped != second && rateSeconds.compareAndSet(slot, stamped, second))
+                rateCounts.set(slot, 0);
+            rateCounts.incrementAndGet(slot);
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder builder = new StringBuilder(mac);
+            for(Phase phase : Phase.values())
+            {
+                ConcurrentHistogram histogram = getPhase(phase);
+                builder.append(' ').append(phase.name().toLowerCase()).append("=")
+                        .append(histogram.percentile(50) / 1000000).append('/')
+                        .append(histogram.percentile(99) / 1000000).append("ms");
+            }
+            builder.append(" notify/s=").append(getNotificationsPerSecond());
+            builder.append(" dispatch p99=").append(dispatch.percentile(99) / 1000).append("us");
+            builder.append(" retries=").append(getRetries());
+            builder.append(" gatt errors=").append(getGattErrors());
+            return builder.toString();
+        }
+    }
+
+    //Phase latencies of every kettle while it ran with one ConnectionProfile
+    public static final class Profile
+    {
+        public final String name;
+        private final ConcurrentHistogram[] phases = new ConcurrentHistogram[Phase.values().length];
+
+        Profile(String name)
+        {
+            this.name = name;
+            for(int i = 0; i < phases.length; i++)
+                phases[i] = new ConcurrentHistogram();
+        }
+
+        public ConcurrentHistogram getPhase(Phase phase)
+        {
+            return phases[phase.ordinal()];
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder builder = new StringBuilder(name);
+            for(Phase phase : Phase.values())
+            {
+                ConcurrentHistogram histogram = getPhase(phase);
+                if(histogram.getCount() == 0)
+                    continue;
+                builder.append(' ').append(phase.name().toLowerCase()).append("=")
+                        .append(histogram.percentile(50) / 1000000).append('/')
+                        .append(histogram.percentile(99) / 1000000).append("ms");
+            }
+            return builder.toString();
+        }
+    }
+
+    private final ConcurrentHashMap<String, Device> devices = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Profile> profiles = new ConcurrentHashMap<>();
+
+    public Device getDevice(String mac)
+    {
+        Device device = devices.get(mac);
+        if(device != null)
+            return device;
+        Device created = new Device(mac);
+        device = devices.putIfAbsent(mac, created);
+        return device != null ? device : created;
+    }
+
+    public List<Device> getDevices()
+    {
+        return new ArrayList<>(devices.values());
+    }
+
+    public Profile getProfile(String name)
+    {
+        Profile profile = profiles.get(name);
+        if(profile != null)
+            return profile;
+        Profile created = new Profile(name);
+        profile = profiles.putIfAbsent(name, created);
+        return profile != null ? profile : created;
+    }
+
+    public List<Profile> getProfiles()
+    {
+        return new ArrayList<>(profiles.values());
+    }
+
+    public void clear()
+    {
+        devices.clear();
+        profiles.clear();
+    }
+
+    @Override
+    public void onPhase(String mac, Phase phase, long nanos, boolean success)
+    {
+        Device device = getDevice(mac);
+        if(success)
+            device.phases[phase.ordinal()].record(nanos);
+        else
+            device.phaseFailures[phase.ordinal()].increment();
+    }
+
+    @Override
+    public void onProfile(String mac, String profile, Phase phase, long nanos)
+    {
+        getProfile(profile).phases[phase.ordinal()].record(nanos);
+    }
+
+    @Override
+    public void onNotification(String mac)
+    {
+        getDevice(mac).notification();
+    }
+
+    @Override
+    public void onDispatch(String mac, long nanos)
+    {
+        getDevice(mac).dispatch.record(nanos);
+    }
+
+    @Override
+    public void onGattError(String mac, int status)
+    {
+        getDevice(mac).gattError(status);
+    }
+
+    @Override
+    public void onRetry(String mac)
+    {
+        getDevice(mac).retries.increment();
+    }
+}
@@ -0,0 +1,144 @@
+package org.sombrenuit.dk.kettleboy;
+
+/**
+ * Parser for the MiBeacon frames Xiaomi devices advertise as fe95 service data, no connection needed.
+ * Layout, little endian: frame control (2), product id (2), frame counter (1), then the mac reversed (6)
+ * when included, a capability byte (plus 2 io capability bytes) when included, and objects of
+ * type (2), length (1) and data. The kettle announces object 0x1005: power state and temperature.
+ * Encrypted frames need a bind key the kettle never hands out, they are recognised and skipped.
+ * One instance is reused for every frame, parsing does not allocate.
+ */
+public class MiBeacon
+{
+    public static final int OBJECT_KETTLE_STATUS = 0x1005;
+
+    private static final int FRAME_ENCRYPTED = 0x0008;
+    private static final int FRAME_MAC = 0x0010;
+    private static final int FRAME_CAPABILITY = 0x0020;
+    private static final int FRAME_OBJECT = 0x0040;
+    private static final int CAPABILITY_IO = 0x20;
+
+    private int frameControl;
+    private int productId;
+    private int frameCounter;
+    private long mac;
+    private boolean hasKettleStatus;
+    private int power;
+    private int temperature;
+
+    //Decodes fe95 service data into into, false when the frame is too short or malformed
+    public static boolean parse(byte[] data, MiBeacon into)
+    {
+        into.clear();
+        if(data == null || data.length < 5)
+            return false;
+        int frameControl = u16(data, 0);
+        into.frameControl = frameControl;
+        into.productId = u16(data, 2);
+        into.frameCounter = data[4] & 0xff;
+        int i = 5;
+        if((frameControl & FRAME_MAC) != 0)
+        {
+            if(data.length < i + 6)
+                return false;
+            long mac = 0;
+            for(int b = 5; b >= 0; b--)
+                mac = (mac << 8) | (data[i + b] & 0xff);
+            into.mac = mac;
+            i += 6;
+        }
+        if((frameControl & FRAME_CAPABILITY) != 0)
+        {
+            if(data.length < i + 1)
+                return false;
+            int capability = data[i] & 0xff;
+            i += (capability & CAPABILITY_IO) != 0 ? 3 : 1;
+        }
+        if((frameControl & FRAME_ENCRYPTED) != 0 || (frameControl & FRAME_OBJECT) == 0)
+            return i <= data.length;
+
+        while(i + 3 <= data.length)
+        {
+            int type = u16(data, i);
+            int length = data[i + 2] & 0xff;
+            i += 3;
+            if(i + length > data.length)
+                return false;
+            if(type == OBJECT_KETTLE_STATUS && length >= 2)
+            {
+                into.hasKettleStatus = true;
+                into.power = data[i] & 0xff;
+                into.temperature = data[i + 1] & 0xff;
+            }
+            i += length;
+        }
+        return true;
+    }
+
+    public void clear()
+    {
+        frameControl = 0;
+        productId = 0;
+        frameCounter = 0;
+        mac = 0;
+        hasKettleStatus = false;
+        power = 0;
+        temperature = 0;
+    }
+
+    public int getVersion()
+    {
+        return (frameControl >> 12) & 0x0f;
+    }
+
+    public boolean isEncrypted()
+    {
+        return (frameControl & FRAME_ENCRYPTED) != 0;
+    }
+
+    public int getProductId()
+    {
+        return productId;
+    }
+
+    //Goes up by one for every new event, repeated advertisements of the same event keep it
+    public int getFrameCounter()
+    {
+        return frameCounter;
+    }
+
+    //The mac as a 48 bit number like StatusJournal.macKey, 0 when the frame does not carry it
+    public long getMac()
+    {
+        return mac;
+    }
+
+    public boolean hasKettleStatus()
+    {
+        return hasKettleStatus;
+    }
+
+    //0 when the heater is off
+    public int getPower()
+    {
+        return power;
+    }
+
+    public int getTemperature()
+    {
+        return temperature;
+    }
+
+    private static int u16(byte[] data, int offset)
+    {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MiBeacon{v" + getVersion() + " product=" + productId + " counter=" + frameCounter
+                + (isEncrypted() ? " encrypted" : "")
+                + (hasKettleStatus ? " power=" + power + " temperature=" + temperature : "") + "}";
+    }
+}
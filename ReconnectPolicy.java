@@ -0,0 +1,46 @@
+package org.sombrenuit.dk.kettleboy;
+
+import java.util.Random;
+
+/**
+ * When a subscribed kettle drops, the first reconnect goes out almost right away, most drops are a
+ * moment out of range. Each failed attempt after that waits longer, exponentially up to maxMillis,
+ * and every wait is jittered so a fleet that lost its gateway does not come back in lockstep.
+ * A link that drops again within stableMillis of coming up continues the backoff instead of
+ * starting over with the fast path.
+ */
+public final class ReconnectPolicy
+{
+    public static final ReconnectPolicy DEFAULT = new ReconnectPolicy(200, 1000, 60000, 2, 10000);
+    public static final ReconnectPolicy DISABLED = new ReconnectPolicy(0, 0, 0, 1, 0);
+
+    public final long fastPathMillis;
+    public final long baseMillis;
+    public final long maxMillis;
+    public final double multiplier;
+    public final long stableMillis;
+
+    public ReconnectPolicy(long fastPathMillis, long baseMillis, long maxMillis, double multiplier, long stableMillis)
+    {
+        this.fastPathMillis = fastPathMillis;
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+        this.multiplier = multiplier;
+        this.stableMillis = stableMillis;
+    }
+
+    public boolean isEnabled()
+    {
+        return maxMillis > 0;
+    }
+
+    //Wait before the given attempt, 0 is the first one after the drop
+    public long delay(int attempt, Random random)
+    {
+        if(attempt == 0)
+            return fastPathMillis > 0 ? (long) (random.nextDouble() * fastPathMillis) : 0;
+        double cap = Math.min(maxMillis, baseMillis * Math.pow(multiplier, attempt - 1));
+        //equal jitter, never less than half the backoff
+        return (long) (cap / 2 + random.nextDouble() * cap / 2);
+    }
+}
@@ -0,0 +1,514 @@
+package org.sombrenuit.dk.kettleboy;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In process kettle that plays the device side of the protocol: the fe95 auth exchange
+ * and the 4736/aa02 status notifications. Every callback is delivered on the given scheduler
+ * after latency + random jitter, and is lost with probability dropRate. The random source is
+ * seeded, so a run with one single threaded scheduler is repeatable.
+ */
+public class SimulatedKettle implements GattTransport
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String mac;
+    private final byte[] reversedMac;
+    private final byte productId;
+    private final ScheduledExecutorService scheduler;
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final double dropRate;
+    private final Random random;
+
+    private long notifyIntervalMillis = 500;
+    //extra delay per callback for each connection priority, by priority value
+    private final long[] priorityLatencyMillis = new long[3];
+    private int connectionPriority = PRIORITY_BALANCED;
+    private int maxMtu = DEFAULT_MTU;
+    private String name = "MiKettle";
+    private String firmware = "1.0.4";
+    private String mcuVersion = "0041";
+    private byte[] statusFrame = new byte[]{0x00, (byte) 0xFF, 0x00, 0x00, 0x5A, 0x14, 0x00, 0x00, 0x00};
+
+    private Callback callback;
+    private boolean connected;
+    private boolean reachable = true;
+    private final HashMap<Integer, byte[]> setup = new HashMap<>();
+    private int setupWrites;
+    private boolean discovered;
+    private boolean authInit;
+    private boolean authenticated;
+    private boolean statusNotify;
+    private byte[] token;
+    private long lastDelivery;
+    private int session;
+    private ScheduledFuture<?> statusTask;
+
+    public SimulatedKettle(String mac, byte productId, ScheduledExecutorService scheduler)
+    {
+        this(mac, productId, scheduler, 0, 0, 0, 1);
+    }
+
+    public SimulatedKettle(String mac, byte productId, ScheduledExecutorService scheduler,
+                           long latencyMillis, long jitterMillis, double dropRate, long seed)
+    {
+        this.mac = mac;
+        this.reversedMac = KettleProtocol.reverseMac(mac);
+        this.productId = productId;
+        this.scheduler = scheduler;
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.dropRate = dropRate;
+        this.random = new Random(seed);
+    }
+
+    public synchronized void setNotifyInterval(long millis)
+    {
+        notifyIntervalMillis = millis;
+        if(statusTask != null)
+        {
+            statusTask.cancel(false);
+            startStatusNotifications();
+        }
+    }
+
+    /**
+     * Models the connection interval each priority gets: every callback is delayed by the value of
+     * the priority in effect. All 0 by default, the priority then changes nothing.
+     */
+    public synchronized void setPriorityLatency(long highMillis, long balancedMillis, long lowPowerMillis)
+    {
+        priorityLatencyMillis[PRIORITY_HIGH] = highMillis;
+        priorityLatencyMillis[PRIORITY_BALANCED] = balancedMillis;
+        priorityLatencyMillis[PRIORITY_LOW_POWER] = lowPowerMillis;
+    }
+
+    //Largest mtu the kettle accepts in an exchange, by default it stays at DEFAULT_MTU
+    public synchronized void setMaxMtu(int mtu)
+    {
+        maxMtu = mtu;
+    }
+
+    public synchronized int getConnectionPriority()
+    {
+        return connectionPriority;
+    }
+
+    public synchronized void setDeviceInfo(String name, String firmware, String mcuVersion)
+    {
+        this.name = name;
+        this.firmware = firmware;
+        this.mcuVersion = mcuVersion;
+    }
+
+    public synchronized void setStatus(int action, int mode, int setTemperature, int currentTemperature,
+                                       int keepWarmType, int keepWarmTime)
+    {
+        statusFrame = new byte[]{(byte) action, (byte) mode, 0x00, 0x00, (byte) setTemperature,
+                (byte) currentTemperature, (byte) keepWarmType, (byte) (keepWarmTime >> 8), (byte) keepWarmTime};
+    }
+
+    public synchronized byte[] getStatusFrame()
+    {
+        return statusFrame.clone();
+    }
+
+    //Last value written to a setup, time or boil mode characteristic, null if none was
+    public synchronized byte[] getSetupValue(int characteristic)
+    {
+        byte[] value = setup.get(characteristic);
+        return value == null ? null : value.clone();
+    }
+
+    public synchronized int getSetupWrites()
+    {
+        return setupWrites;
+    }
+
+    public synchronized boolean isConnected()
+    {
+        return connected;
+    }
+
+    public synchronized boolean isAuthenticated()
+    {
+        return authenticated;
+    }
+
+    //Simulates a link loss initiated by the kettle or the radio
+    public synchronized void dropConnection()
+    {
+        if(!connected)
+            return;
+        resetLink();
+        final Callback cb = callback;
+        deliver(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                cb.onConnectionStateChange(GATT_FAILURE, false);
+            }
+        }, false);
+    }
+
+    //An unreachable kettle drops its link and ignores connects until it is reachable again
+    public void setReachable(boolean reachable)
+    {
+        synchronized (this)
+        {
+            this.reachable = reachable;
+        }
+        if(!reachable)
+            dropConnection();
+    }
+
+    @Override
+    public String getAddress()
+    {
+        return mac;
+    }
+
+    @Override
+    public synchronized boolean connect(final Callback callback)
+    {
+        if(connected)
+            resetLink();
+        this.callback = callback;
+        if(!reachable)
+            return true;
+        connected = true;
+        deliver(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                callback.onConnectionStateChange(GATT_SUCCESS, true);
+            }
+        }, true);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean discoverServices()
+    {
+        if(!connected)
+            return false;
+        discovered = true;
+        final Callback cb = callback;
+        deliver(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                cb.onServicesDiscovered(GATT_SUCCESS);
+            }
+        }, true);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean hasService(int service)
+    {
+        return discovered && (service == KettleProtocol.UUID_SERVICE_AUTH
+                || service == KettleProtocol.UUID_SERVICE_HARDWARE
+                || service == KettleProtocol.UUID_SERVICE_DATA);
+    }
+
+    @Override
+    public synchronized boolean readCharacteristic(final int service, final int characteristic)
+    {
+        if(!connected || !discovered)
+            return false;
+
+        byte[] value = null;
+        int status = GATT_SUCCESS;
+        if(service == KettleProtocol.UUID_SERVICE_AUTH && characteristic == KettleProtocol.UUID_VERSION && authenticated)
+            value = firmware.getBytes(UTF8);
+        else if(service == KettleProtocol.UUID_SERVICE_HARDWARE && authenticated)
+        {
+            if(characteristic == KettleProtocol.UUID_NAME)
+                value = name.getBytes(UTF8);
+            else if(characteristic == KettleProtocol.UUID_FIRMWARE)
+                value = firmware.getBytes(UTF8);
+            else if(characteristic == KettleProtocol.UUID_MCU_VERSION)
+                value = mcuVersion.getBytes(UTF8);
+        }
+        else if(service == KettleProtocol.UUID_SERVICE_DATA && characteristic == KettleProtocol.UUID_STATUS && authenticated)
+            value = statusFrame.clone();
+
+        if(value == null)
+            status = authenticated ? GATT_FAILURE : GATT_INSUFFICIENT_AUTHENTICATION;
+
+        final byte[] result = value;
+        final int resultStatus = status;
+        final Callback cb = callback;
+        deliver(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                cb.onCharacteristicRead(service, characteristic, result, resultStatus);
+            }
+        }, true);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean writeCharacteristic(final int service, final int characteristic, byte[] value)
+    {
+        if(!connected || !discovered)
+            return false;
+
+        int status = GATT_SUCCESS;
+        byte[] notification = null;
+        if(service == KettleProtocol.UUID_SERVICE_AUTH && characteristic == KettleProtocol.UUID_AUTH_INIT)
+        {
+            authInit = Arrays.equals(value, KettleProtocol._KEY1);
+            authenticated = false;
+            token = null;
+            if(!authInit)
+                status = GATT_FAILURE;
+        }
+        else if(service == KettleProtocol.UUID_SERVICE_AUTH && characteristic == KettleProtocol.UUID_AUTH)
+        {
+            if(authInit && token == null)
+            {
+                byte[] mixA = KettleProtocol.mixA(reversedMac, productId);
+                token = KettleProtocol.cipher(mixA, value);
+                notification = KettleProtocol.cipher(mixA, KettleProtocol.cipher(KettleProtocol.mixB(reversedMac, productId), token));
+            }
+            else if(token != null && Arrays.equals(KettleProtocol.cipher(token, value), KettleProtocol._KEY2))
+                authenticated = true;
+            else
+                status = GATT_FAILURE;
+        }
+        else if(service == KettleProtocol.UUID_SERVICE_DATA && authenticated)
+        {
+            setup.put(characteristic, value.clone());
+            setupWrites++;
+            //the keep warm setup shows up in the status
+            if(characteristic == KettleProtocol.UUID_SETUP && value.length >= 2)
+            {
+                statusFrame[6] = value[0];
+                statusFrame[4] = value[1];
+            }
+        }
+        else
+            status = authenticated ? GATT_FAILURE : GATT_INSUFFICIENT_AUTHENTICATION;
+
+        final int resultStatus = status;
+        final Callback cb = callback;
+        deliver(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                cb.onCharacteristicWrite(service, characteristic, resultStatus);
+            }
+        }, true);
+
+        if(notification != null)
+            notify(KettleProtocol.UUID_SERVICE_AUTH, KettleProtocol.UUID_AUTH, notification);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean setCharacteristicNotification(int service, int characteristic, boolean enable)
+    {
+        return connected && discovered;
+    }
+
+    @Override
+    public synchronized boolean writeDescriptor(final int service, final int characteristic, final int descriptor, byte[] value)
+    {
+        if(!connected || !discovered)
+            return false;
+
+        int status = GATT_SUCCESS;
+        boolean enable = Arrays.equals(value, KettleProtocol._SUBSCRIBE_TRUE);
+        if(service == KettleProtocol.UUID_SERVICE_DATA && characteristic == KettleProtocol.UUID_STATUS)
+        {
+            if(!authenticated)
+                status = GATT_INSUFFICIENT_AUTHENTICATION;
+            else if(enable && !statusNotify)
+            {
+                statusNotify = true;
+                startStatusNotifications();
+            }
+            else if(!enable && statusNotify)
+            {
+                statusNotify = false;
+                stopStatusNotifications();
+            }
+        }
+
+        final int resultStatus = status;
+        final Callback cb = callback;
+        deliver(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                cb.onDescriptorWrite(service, characteristic, descriptor, resultStatus);
+            }
+        }, true);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean requestConnectionPriority(int priority)
+    {
+        if(!connected || priority < 0 || priority >= priorityLatencyMillis.length)
+            return false;
+        connectionPriority = priority;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean requestMtu(int mtu)
+    {
+        if(!connected)
+            return false;
+        final int agreed = Math.max(DEFAULT_MTU, Math.min(mtu, maxMtu));
+        final Callback cb = callback;
+        deliver(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                cb.onMtuChanged(agreed, GATT_SUCCESS);
+            }
+        }, true);
+        return true;
+    }
+
+    //The kettle is a bluetooth 4 device, it stays on the 1M phy whatever is asked for
+    @Override
+    public synchronized boolean setPreferredPhy(int phys)
+    {
+        if(!connected)
+            return false;
+        final Callback cb = callback;
+        deliver(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                cb.onPhyUpdate(PHY_LE_1M, PHY_LE_1M, GATT_SUCCESS);
+            }
+        }, true);
+        return true;
+    }
+
+    @Override
+    public synchronized void disconnect()
+    {
+        if(!connected)
+            return;
+        resetLink();
+        final Callback cb = callback;
+        deliver(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                cb.onConnectionStateChange(GATT_SUCCESS, false);
+            }
+        }, false);
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        resetLink();
+        callback = null;
+    }
+
+    private void resetLink()
+    {
+        connected = false;
+        discovered = false;
+        authInit = false;
+        authenticated = false;
+        token = null;
+        statusNotify = false;
+        connectionPriority = PRIORITY_BALANCED;
+        stopStatusNotifications();
+        session++;
+    }
+
+    private void startStatusNotifications()
+    {
+        statusTask = scheduler.scheduleAtFixedRate(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                synchronized (SimulatedKettle.this)
+                {
+                    if(statusNotify)
+                        SimulatedKettle.this.notify(KettleProtocol.UUID_SERVICE_DATA, KettleProtocol.UUID_STATUS, statusFrame.clone());
+                }
+            }
+        }, notifyIntervalMillis, notifyIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopStatusNotifications()
+    {
+        if(statusTask != null)
+            statusTask.cancel(false);
+        statusTask = null;
+    }
+
+    private void notify(final int service, final int characteristic, final byte[] value)
+    {
+        final Callback cb = callback;
+        deliver(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                cb.onCharacteristicChanged(service, characteristic, value);
+            }
+        }, true);
+    }
+
+    //Keeps delivery in order per link, like a real connection, and drops callbacks of a link that is gone
+    private void deliver(final Runnable event, boolean droppable)
+    {
+        if(callback == null)
+            return;
+        if(droppable && dropRate > 0 && random.nextDouble() < dropRate)
+            return;
+
+        long now = System.nanoTime();
+        long delay = TimeUnit.MILLISECONDS.toNanos(latencyMillis + priorityLatencyMillis[connectionPriority]);
+        if(jitterMillis > 0)
+            delay += (long) (random.nextDouble() * TimeUnit.MILLISECONDS.toNanos(jitterMillis));
+        long at = Math.max(now + delay, lastDelivery);
+        lastDelivery = at;
+
+        final int eventSession = session;
+        scheduler.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                synchronized (SimulatedKettle.this)
+                {
+                    if(eventSession != session || callback == null)
+                        return;
+                }
+                event.run();
+            }
+        }, at - now, TimeUnit.NANOSECONDS);
+    }
+}
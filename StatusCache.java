@@ -0,0 +1,210 @@
+package org.sombrenuit.dk.kettleboy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Last decoded status of a kettle with a time to live.
+ * The snapshot is swapped through a volatile field, readers never lock and never see a half written status.
+ * A published {@link KettleStatus} is never changed afterwards, callers must treat it as read only.
+ * When the snapshot is too old, the first caller starts a refresh and everyone asking meanwhile
+ * waits on that same refresh.
+ */
+public class StatusCache
+{
+    private final Runnable refresher;
+    private final ScheduledExecutorService scheduler;
+    private final long refreshTimeoutMillis;
+    private volatile long ttlMillis;
+
+    private volatile KettleStatus status;
+    private volatile byte[] frame;
+    private volatile long updatedAt;
+
+    private final List<IOnComplete<KettleStatus>> waiters = new ArrayList<>();
+    private volatile boolean refreshing;
+    private ScheduledFuture<?> refreshDeadline;
+
+    /**
+     * @param refresher asks the kettle for a new status, the answer has to come back through {@link #publish(byte[])}
+     */
+    public StatusCache(long ttlMillis, Runnable refresher, ScheduledExecutorService scheduler, long refreshTimeoutMillis)
+    {
+        this.ttlMillis = ttlMillis;
+        this.refresher = refresher;
+        this.scheduler = scheduler;
+        this.refreshTimeoutMillis = refreshTimeoutMillis;
+    }
+
+    public void setTtl(long millis)
+    {
+        ttlMillis = millis;
+    }
+
+    public long getTtl()
+    {
+        return ttlMillis;
+    }
+
+    //Latest status regardless of age, null before the first frame
+    public KettleStatus peek()
+    {
+        return status;
+    }
+
+    //Latest status if it is younger than the ttl, null otherwise
+    public KettleStatus get()
+    {
+        KettleStatus current = status;
+        if(current == null || System.currentTimeMillis() - updatedAt > ttlMillis)
+            return null;
+        return current;
+    }
+
+    //Copy of the raw frame behind the latest status, null before the first frame
+    public byte[] getFrame()
+    {
+        byte[] current = frame;
+        return current != null ? current.clone() : null;
+    }
+
+    public long getUpdatedAt()
+    {
+        return updatedAt;
+    }
+
+    public boolean isAvailable()
+    {
+        return status != null;
+    }
+
+    public void clear()
+    {
+        status = null;
+        frame = null;
+        updatedAt = 0;
+    }
+
+    public void read(boolean readCached, IOnComplete<KettleStatus> onComplete)
+    {
+        if(readCached)
+        {
+            KettleStatus current = get();
+            if(current != null)
+            {
+                onComplete.onComplete(current);
+                return;
+            }
+        }
+
+        boolean start = false;
+        synchronized (this)
+        {
+            waiters.add(onComplete);
+            if(!refreshing)
+            {
+                refreshing = true;
+                start = true;
+                refreshDeadline = scheduler.schedule(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        fail();
+                    }
+                }, refreshTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if(start)
+            refresher.run();
+    }
+
+    public void publish(byte[] data)
+    {
+        publish(data, -1, 0);
+    }
+
+    /**
+     * Called for every status frame, with the eta estimated for it. A frame identical to the current
+     * one with the same eta only renews the age, so steady state notifications do not allocate.
+     */
+    public void publish(byte[] data, long etaMillis, double etaConfidence)
+    {
+        if(data == null || data.length < KettleStatus.FRAME_LENGTH)
+            return;
+        long now = System.currentTimeMillis();
+        byte[] last = frame;
+        KettleStatus current = status;
+        if(last == null || !sameFrame(last, data) || current.getEtaMillis() != etaMillis
+                || current.getEtaConfidence() != etaConfidence)
+        {
+            KettleStatus decoded = KettleStatus.decode(data);
+            decoded.setEta(etaMillis, etaConfidence);
+            byte[] copy = new byte[KettleStatus.FRAME_LENGTH];
+            System.arraycopy(data, 0, copy, 0, KettleStatus.FRAME_LENGTH);
+            frame = copy;
+            status = decoded;
+        }
+        updatedAt = now;
+
+        if(refreshing)
+            complete(status);
+    }
+
+    //Forgets a caller still waiting on the refresh, the refresh itself goes on for the others
+    public synchronized boolean cancel(IOnComplete<KettleStatus> waiter)
+    {
+        return waiters.remove(waiter);
+    }
+
+    //Fails the refresh in flight, if any
+    public void fail()
+    {
+        List<IOnComplete<KettleStatus>> done;
+        synchronized (this)
+        {
+            if(!refreshing)
+                return;
+            done = takeWaiters();
+        }
+        for(IOnComplete<KettleStatus> waiter : done)
+            waiter.onError();
+    }
+
+    private void complete(KettleStatus current)
+    {
+        List<IOnComplete<KettleStatus>> done;
+        synchronized (this)
+        {
+            if(!refreshing)
+                return;
+            done = takeWaiters();
+        }
+        for(IOnComplete<KettleStatus> waiter : done)
+            waiter.onComplete(current);
+    }
+
+    private List<IOnComplete<KettleStatus>> takeWaiters()
+    {
+        refreshing = false;
+        if(refreshDeadline != null)
+            refreshDeadline.cancel(false);
+        refreshDeadline = null;
+        List<IOnComplete<KettleStatus>> done = new ArrayList<>(waiters);
+        waiters.clear();
+        return done;
+    }
+
+    private static boolean sameFrame(byte[] last, byte[] data)
+    {
+        for(int i = 0; i < KettleStatus.FRAME_LENGTH; i++)
+        {
+            if(last[i] != data[i])
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,132 @@
+package org.sombrenuit.dk.kettleboy;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns the raw status stream into change events. Frames that decode to the status last delivered
+ * are dropped without allocating. With a coalescing window, at most one event per window reaches
+ * the listener, carrying the latest frame and every field that changed since the previous event.
+ * A coalesced event is handed to the listener's executor, the scheduler only times it.
+ */
+public class StatusDeltaFilter
+{
+    private final IOnStatusChanged listener;
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+    private final long windowMillis;
+
+    private final byte[] delivered = new byte[KettleStatus.FRAME_LENGTH];
+    private final byte[] pending = new byte[KettleStatus.FRAME_LENGTH];
+    private boolean hasDelivered;
+    private boolean flushScheduled;
+    private long lastDelivery;
+
+    private long frames;
+    private long events;
+
+    public StatusDeltaFilter(IOnStatusChanged listener, ScheduledExecutorService scheduler, long windowMillis)
+    {
+        this(listener, scheduler, windowMillis, KettleScheduler.listeners());
+    }
+
+    public StatusDeltaFilter(IOnStatusChanged listener, ScheduledExecutorService scheduler, long windowMillis, Executor executor)
+    {
+        this.listener = listener;
+        this.scheduler = scheduler;
+        this.windowMillis = windowMillis;
+        this.executor = executor;
+    }
+
+    public void onFrame(byte[] frame)
+    {
+        if(frame == null || frame.length < KettleStatus.FRAME_LENGTH)
+            return;
+
+        int changed;
+        KettleStatus status;
+        synchronized (this)
+        {
+            frames++;
+            if(flushScheduled)
+            {
+                System.arraycopy(frame, 0, pending, 0, KettleStatus.FRAME_LENGTH);
+                return;
+            }
+
+            changed = hasDelivered ? KettleStatus.diff(delivered, frame) : KettleStatus.CHANGED_ALL;
+            if(changed == 0)
+                return;
+
+            long now = System.nanoTime();
+            long wait = TimeUnit.MILLISECONDS.toNanos(windowMillis) - (now - lastDelivery);
+            if(hasDelivered && windowMillis > 0 && wait > 0)
+            {
+                System.arraycopy(frame, 0, pending, 0, KettleStatus.FRAME_LENGTH);
+                flushScheduled = true;
+                final Runnable flush = new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        flush();
+                    }
+                };
+                scheduler.schedule(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        executor.execute(flush);
+                    }
+                }, wait, TimeUnit.NANOSECONDS);
+                return;
+            }
+
+            status = accept(frame, now);
+        }
+        listener.onStatusChanged(changed, status);
+    }
+
+    public synchronized long getFrames()
+    {
+        return frames;
+    }
+
+    public synchronized long getEvents()
+    {
+        return events;
+    }
+
+    //Forgets the last delivered status, the next frame is reported with every field changed
+    public synchronized void reset()
+    {
+        hasDelivered = false;
+    }
+
+    private void flush()
+    {
+        int changed;
+        KettleStatus status;
+        synchronized (this)
+        {
+            flushScheduled = false;
+            changed = KettleStatus.diff(delivered, pending);
+            if(changed == 0)
+                return;
+            status = accept(pending, System.nanoTime());
+        }
+        listener.onStatusChanged(changed, status);
+    }
+
+    //Called with the lock held. The status handed out is a new instance, listeners may keep it.
+    private KettleStatus accept(byte[] frame, long now)
+    {
+        System.arraycopy(frame, 0, delivered, 0, KettleStatus.FRAME_LENGTH);
+        hasDelivered = true;
+        lastDelivery = now;
+        events++;
+        return KettleStatus.decode(delivered);
+    }
+}
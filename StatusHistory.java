@@ -0,0 +1,328 @@
+package org.sombrenuit.dk.kettleboy;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Status history of one kettle at a fixed memory cost. Every frame goes into a ring of primitive
+ * arrays, and is folded into min / max / average buckets at coarser resolutions, each with a ring
+ * of its own, so a day or a month stays available after the raw samples were overwritten.
+ * Recording never allocates. Readers never lock: they copy under an optimistic read of a
+ * {@link StampedLock} and copy again when a frame was recorded meanwhile, so the writer on the event
+ * loop never waits for a reader, however large the range.
+ * The bucket being filled is not visible until its period is over.
+ */
+public class StatusHistory
+{
+    public static final int DEFAULT_CAPACITY = 4096;
+    //1 minute for a day and a half, 15 minutes for ten days, 1 hour for six weeks. The rings need
+    //powers of two, other counts are rounded up.
+    public static final long[] DEFAULT_RESOLUTIONS = {60000L, 15 * 60000L, 60 * 60000L};
+    public static final int[] DEFAULT_BUCKETS = {2048, 1024, 1024};
+
+    //Reusable result of a raw range query, sized by the caller
+    public static final class Samples
+    {
+        public final long[] time;
+        public final int[] temperature;
+        public final int[] setTemperature;
+        public final int[] action;
+        public final int[] mode;
+        public int size;
+
+        public Samples(int capacity)
+        {
+            time = new long[capacity];
+            temperature = new int[capacity];
+            setTemperature = new int[capacity];
+            action = new int[capacity];
+            mode = new int[capacity];
+        }
+
+        public int capacity()
+        {
+            return time.length;
+        }
+    }
+
+    //Reusable result of a downsampled range query, temperatures of the current temperature
+    public static final class Buckets
+    {
+        public final long[] start;
+        public final int[] min;
+        public final int[] max;
+        public final double[] average;
+        public final int[] count;
+        public int size;
+
+        public Buckets(int capacity)
+        {
+            start = new long[capacity];
+            min = new int[capacity];
+            max = new int[capacity];
+            average = new double[capacity];
+            count = new int[capacity];
+        }
+
+        public int capacity()
+        {
+            return start.length;
+        }
+    }
+
+    private final int mask;
+    private final long[] times;
+    private final byte[] temperatures;
+    private final byte[] setTemperatures;
+    private final byte[] actions;
+    private final byte[] modes;
+    //samples written so far
+    private volatile long written;
+    //held by the writer for a whole frame, raw slot and buckets, readers only validate against it
+    private final StampedLock lock = new StampedLock();
+
+    private final Tier[] tiers;
+
+    private static final class Tier
+    {
+        final long resolution;
+        final int mask;
+        final long[] start;
+        final byte[] min;
+        final byte[] max;
+        final int[] sum;
+        final int[] count;
+        volatile long closed;
+
+        //the open bucket, only touched by the writer
+        long openStart = -1;
+        int openMin;
+        int openMax;
+        int openSum;
+        int openCount;
+
+        Tier(long resolution, int buckets)
+        {
+            this.resolution = resolution;
+            this.mask = buckets - 1;
+            start = new long[buckets];
+            min = new byte[buckets];
+            max = new byte[buckets];
+            sum = new int[buckets];
+            count = new int[buckets];
+        }
+
+        void add(long time, int temperature)
+        {
+            long bucket = time - time % resolution;
+            if(bucket != openStart)
+            {
+                if(openStart >= 0)
+                    close();
+                openStart = bucket;
+                openMin = temperature;
+                openMax = temperature;
+                openSum = 0;
+                openCount = 0;
+            }
+            if(temperature < openMin)
+                openMin = temperature;
+            if(temperature > openMax)
+                openMax = temperature;
+            openSum += temperature;
+            openCount++;
+        }
+
+        private void close()
+        {
+            long n = closed;
+            int slot = (int) (n & mask);
+            start[slot] = openStart;
+            min[slot] = (byte) openMin;
+            max[slot] = (byte) openMax;
+            sum[slot] = openSum;
+            count[slot] = openCount;
+            closed = n + 1;
+        }
+    }
+
+    public StatusHistory()
+    {
+        this(DEFAULT_CAPACITY, DEFAULT_RESOLUTIONS, DEFAULT_BUCKETS);
+    }
+
+    /**
+     * @param capacity raw samples kept, rounded up to a power of two
+     * @param resolutions bucket length of each downsampled tier in ms
+     * @param buckets buckets kept per tier, rounded up to a power of two
+     */
+    public StatusHistory(int capacity, long[] resolutions, int[] buckets)
+    {
+        if(resolutions.length != buckets.length)
+            throw new IllegalArgumentException("One bucket count per resolution is needed");
+        int size = powerOfTwo(capacity);
+        mask = size - 1;
+        times = new long[size];
+        temperatures = new byte[size];
+        setTemperatures = new byte[size];
+        actions = new byte[size];
+        modes = new byte[size];
+        tiers = new Tier[resolutions.length];
+        for(int i = 0; i < resolutions.length; i++)
+            tiers[i] = new Tier(resolutions[i], powerOfTwo(buckets[i]));
+    }
+
+    public int capacity()
+    {
+        return mask + 1;
+    }
+
+    public int getResolutionCount()
+    {
+        return tiers.length;
+    }
+
+    public long getResolution(int tier)
+    {
+        return tiers[tier].resolution;
+    }
+
+    public long getWritten()
+    {
+        return written;
+    }
+
+    //Records a raw status frame, called with the frames in arrival order
+    public void record(long time, byte[] frame)
+    {
+        if(frame == null || frame.length < KettleStatus.FRAME_LENGTH)
+            return;
+        long stamp = lock.writeLock();
+        try
+        {
+            long n = written;
+            int slot = (int) (n & mask);
+            times[slot] = time;
+            actions[slot] = frame[0];
+            modes[slot] = frame[1];
+            setTemperatures[slot] = frame[4];
+            temperatures[slot] = frame[5];
+            written = n + 1;
+
+            int temperature = frame[5] & 0xff;
+            for(Tier tier : tiers)
+                tier.add(time, temperature);
+        }
+        finally
+        {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    //Raw samples with from <= time < to, oldest first, at most into.capacity() of the newest. Returns the count.
+    public int read(long from, long to, Samples into)
+    {
+        while(true)
+        {
+            long stamp = optimisticRead();
+            int size = copy(from, to, into);
+            if(lock.validate(stamp))
+            {
+                into.size = size;
+                return size;
+            }
+        }
+    }
+
+    //Closed buckets of a tier with from <= start < to, oldest first, at most into.capacity() of the newest
+    public int readBuckets(int tierIndex, long from, long to, Buckets into)
+    {
+        Tier tier = tiers[tierIndex];
+        while(true)
+        {
+            long stamp = optimisticRead();
+            int size = copy(tier, from, to, into);
+            if(lock.validate(stamp))
+            {
+                into.size = size;
+                return size;
+            }
+        }
+    }
+
+    //A stamp taken while no frame is being recorded, a frame takes microseconds
+    private long optimisticRead()
+    {
+        long stamp;
+        while((stamp = lock.tryOptimisticRead()) == 0)
+            Thread.yield();
+        return stamp;
+    }
+
+    //Runs without a lock, the values may be torn, the indexes stay in bounds and validate drops the result
+    private int copy(long from, long to, Samples into)
+    {
+        long end = written;
+        long begin = Math.max(0, end - capacity());
+        long first = lowerBound(times, mask, begin, end, from);
+        long last = lowerBound(times, mask, first, end, to);
+        first = Math.max(first, last - into.capacity());
+
+        int size = 0;
+        for(long i = first; i < last; i++)
+        {
+            int slot = (int) (i & mask);
+            into.time[size] = times[slot];
+            into.temperature[size] = temperatures[slot] & 0xff;
+            into.setTemperature[size] = setTemperatures[slot] & 0xff;
+            into.action[size] = actions[slot] & 0xff;
+            into.mode[size] = modes[slot] & 0xff;
+            size++;
+        }
+        return size;
+    }
+
+    private static int copy(Tier tier, long from, long to, Buckets into)
+    {
+        long end = tier.closed;
+        long begin = Math.max(0, end - (tier.mask + 1));
+        long first = lowerBound(tier.start, tier.mask, begin, end, from);
+        long last = lowerBound(tier.start, tier.mask, first, end, to);
+        first = Math.max(first, last - into.capacity());
+
+        int size = 0;
+        for(long i = first; i < last; i++)
+        {
+            int slot = (int) (i & tier.mask);
+            int count = tier.count[slot];
+            into.start[size] = tier.start[slot];
+            into.min[size] = tier.min[slot] & 0xff;
+            into.max[size] = tier.max[slot] & 0xff;
+            into.count[size] = count;
+            into.average[size] = count == 0 ? 0 : (double) tier.sum[slot] / count;
+            size++;
+        }
+        return size;
+    }
+
+    //First index in [begin, end) whose time is >= key, times are in recording order
+    private static long lowerBound(long[] values, int mask, long begin, long end, long key)
+    {
+        long lo = begin;
+        long hi = end;
+        while(lo < hi)
+        {
+            long mid = (lo + hi) >>> 1;
+            if(values[(int) (mid & mask)] < key)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private static int powerOfTwo(int value)
+    {
+        int size = Integer.highestOneBit(Math.max(1, value));
+        return size < value ? size << 1 : size;
+    }
+}
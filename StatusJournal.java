@@ -0,0 +1,409 @@
+package org.sombrenuit.dk.kettleboy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Append only journal of raw status frames, for incident analysis and for replaying real traffic
+ * into consumers. Records have a fixed size: time, mac, the 9 frame bytes and a commit byte written
+ * last, so a segment cut short by a crash ends at the last complete record.
+ * Segments are memory mapped files of a fixed size, a full one is forced to disk and the next one
+ * started. Only the newest maxSegments are kept, older ones are deleted when a new one starts,
+ * 16 segments of 64MB by default.
+ * {@link #append} claims a ring slot with a compare and set, copies the frame into it and publishes
+ * the slot's sequence, it takes no lock. The journal thread copies published slots out and moves them
+ * to the mapped segment without a lock either, so the bluetooth callback threads never wait on the
+ * disk side. When the journal thread falls a full ring behind, new frames are dropped and counted.
+ */
+public class StatusJournal
+{
+    public static final int RECORD_SIZE = 24;
+    public static final int HEADER_SIZE = 16;
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+    public static final int DEFAULT_RING_RECORDS = 8192;
+    public static final int DEFAULT_MAX_SEGMENTS = 16;
+
+    private static final int MAGIC = 0x4d4b4a31; //MKJ1
+    private static final byte COMMITTED = 1;
+    private static final String SUFFIX = ".journal";
+
+    private final File directory;
+    private final long segmentSize;
+    private final int maxSegments;
+
+    //handoff ring: head is the next sequence to claim, tail the next one the journal thread takes,
+    //published[slot] is the sequence + 1 of the record last copied into the slot
+    private final byte[] ring;
+    private final int ringRecords;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLongArray published;
+    private volatile long tail;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed;
+    //set by the journal thread before it parks, appenders unpark it
+    private volatile boolean sleeping;
+
+    //only written by the journal thread, flush and close wait on this for it
+    private volatile long appended;
+    private final byte[] batch;
+    private MappedByteBuffer segment;
+    private FileChannel channel;
+    private int segmentIndex;
+    private final Thread thread;
+
+    public StatusJournal(File directory) throws IOException
+    {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_RING_RECORDS);
+    }
+
+    public StatusJournal(File directory, long segmentSize, int ringRecords) throws IOException
+    {
+        this(directory, segmentSize, ringRecords, DEFAULT_MAX_SEGMENTS);
+    }
+
+    //maxSegments 0 keeps every segment
+    public StatusJournal(File directory, long segmentSize, int ringRecords, int maxSegments) throws IOException
+    {
+        if(segmentSize < HEADER_SIZE + RECORD_SIZE)
+            throw new IllegalArgumentException("A segment must hold at least one record");
+        if(maxSegments < 0)
+            throw new IllegalArgumentException("The segments kept cannot be negative, got " + maxSegments);
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create journal directory " + directory);
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.ringRecords = ringRecords;
+        this.ring = new byte[ringRecords * RECORD_SIZE];
+        this.published = new AtomicLongArray(ringRecords);
+        this.batch = new byte[ringRecords * RECORD_SIZE];
+
+        File[] segments = segments(directory);
+        if(segments.length == 0)
+            openSegment(0);
+        else
+            resume(segments[segments.length - 1]);
+
+        thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                drain();
+            }
+        }, "mikettle-journal");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static long macKey(String mac)
+    {
+        long key = 0;
+        for(String part : mac.split(":"))
+            key = (key << 8) | (Integer.parseInt(part, 16) & 0xff);
+        return key;
+    }
+
+    public static String macString(long mac)
+    {
+        StringBuilder builder = new StringBuilder(17);
+        for(int shift = 40; shift >= 0; shift -= 8)
+        {
+            int b = (int) (mac >>> shift) & 0xff;
+            if(builder.length() > 0)
+                builder.append(':');
+            builder.append(Character.toUpperCase(Character.forDigit(b >> 4, 16)));
+            builder.append(Character.toUpperCase(Character.forDigit(b & 0xf, 16)));
+        }
+        return builder.toString();
+    }
+
+    //Copies the frame for the journal thread, never blocks and never allocates. Any thread may append.
+    public void append(long mac, long time, byte[] frame)
+    {
+        if(frame == null || frame.length < KettleStatus.FRAME_LENGTH || closed)
+            return;
+        long sequence;
+        do
+        {
+            sequence = head.get();
+            if(sequence - tail >= ringRecords)
+            {
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+        while(!head.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) (sequence % ringRecords);
+        writeRecord(ring, slot * RECORD_SIZE, mac, time, frame);
+        published.set(slot, sequence + 1);
+        if(sleeping)
+        {
+            sleeping = false;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    //Records handed to the mapped segments so far
+    public long getAppended()
+    {
+        return appended;
+    }
+
+    //Waits until everything appended so far is in the mapped segment
+    public void flush() throws InterruptedException
+    {
+        long target = head.get();
+        synchronized (this)
+        {
+            while(appended < target && !closed)
+                wait(100);
+        }
+    }
+
+    //Writes out what is queued, forces the segment to disk and stops the journal thread
+    public void close() throws InterruptedException
+    {
+        closed = true;
+        LockSupport.unpark(thread);
+        thread.join();
+    }
+
+    private void drain()
+    {
+        while(true)
+        {
+            long first = tail;
+            long claimed = head.get();
+            //only the published run from the tail, a slot still being copied ends it
+            int records = 0;
+            while(first + records < claimed && published.get((int) ((first + records) % ringRecords)) == first + records + 1)
+                records++;
+            if(records == 0)
+            {
+                if(closed && claimed == first)
+                    break;
+                sleeping = true;
+                //an append between the check above and here would have found sleeping unset
+                if(head.get() == claimed && !closed)
+                    LockSupport.parkNanos(this, 100000000L);
+                sleeping = false;
+                if(Thread.interrupted())
+                    closed = true;
+                continue;
+            }
+
+            int start = (int) (first % ringRecords);
+            int wrapped = Math.min(records, ringRecords - start);
+            System.arraycopy(ring, start * RECORD_SIZE, batch, 0, wrapped * RECORD_SIZE);
+            if(wrapped < records)
+                System.arraycopy(ring, 0, batch, wrapped * RECORD_SIZE, (records - wrapped) * RECORD_SIZE);
+            //the slots are free for appenders again
+            tail = first + records;
+
+            try
+            {
+                for(int i = 0; i < records; i++)
+                    write(batch, i * RECORD_SIZE);
+            }
+            catch (IOException e)
+            {
+                //the disk is gone, stop journaling rather than spin
+                closed = true;
+                dropped.addAndGet(records);
+                break;
+            }
+            appended += records;
+            synchronized (this)
+            {
+                notifyAll();
+            }
+        }
+
+        if(segment != null)
+            segment.force();
+        closeChannel();
+        synchronized (this)
+        {
+            notifyAll();
+        }
+    }
+
+    private void write(byte[] source, int offset) throws IOException
+    {
+        if(segment.remaining() < RECORD_SIZE)
+        {
+            segment.force();
+            closeChannel();
+            openSegment(segmentIndex + 1);
+            retire();
+        }
+        int position = segment.position();
+        //the commit byte goes last, a reader never sees a half written record as complete
+        segment.put(source, offset, RECORD_SIZE - 1);
+        segment.put(position + RECORD_SIZE - 1, COMMITTED);
+        segment.position(position + RECORD_SIZE);
+    }
+
+    private void openSegment(int index) throws IOException
+    {
+        segmentIndex = index;
+        File file = new File(directory, String.format("segment-%06d%s", index, SUFFIX));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segment.order(ByteOrder.BIG_ENDIAN);
+        segment.putInt(0, MAGIC);
+        segment.putInt(4, RECORD_SIZE);
+        segment.position(HEADER_SIZE);
+    }
+
+    //Deletes the oldest segments beyond maxSegments, the open one always stays
+    private void retire()
+    {
+        if(maxSegments == 0)
+            return;
+        File[] segments = segments(directory);
+        for(int i = 0; i < segments.length - maxSegments; i++)
+        {
+            if(!segments[i].delete())
+                break;
+        }
+    }
+
+    private void resume(File last) throws IOException
+    {
+        String name = last.getName();
+        int index = Integer.parseInt(name.substring("segment-".length(), name.length() - SUFFIX.length()));
+        RandomAccessFile raf = new RandomAccessFile(last, "rw");
+        channel = raf.getChannel();
+        long size = Math.max(segmentSize, channel.size());
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        segmentIndex = index;
+        if(segment.getInt(0) != MAGIC)
+        {
+            segment.putInt(0, MAGIC);
+            segment.putInt(4, RECORD_SIZE);
+        }
+        int position = HEADER_SIZE;
+        while(position + RECORD_SIZE <= size && segment.get(position + RECORD_SIZE - 1) == COMMITTED)
+            position += RECORD_SIZE;
+        //records behind a torn one may have reached the disk before it, new ones must not end next to them
+        for(int stale = position; stale + RECORD_SIZE <= size; stale += RECORD_SIZE)
+        {
+            if(segment.get(stale + RECORD_SIZE - 1) == COMMITTED)
+                segment.put(stale + RECORD_SIZE - 1, (byte) 0);
+        }
+        segment.position(position);
+    }
+
+    private void closeChannel()
+    {
+        try
+        {
+            if(channel != null)
+                channel.close();
+        }
+        catch (IOException e)
+        {
+            //the mapping stays valid, nothing to recover
+        }
+        channel = null;
+    }
+
+    private static void writeRecord(byte[] target, int offset, long mac, long time, byte[] frame)
+    {
+        for(int i = 0; i < 8; i++)
+            target[offset + i] = (byte) (time >>> (56 - 8 * i));
+        for(int i = 0; i < 6; i++)
+            target[offset + 8 + i] = (byte) (mac >>> (40 - 8 * i));
+        System.arraycopy(frame, 0, target, offset + 14, KettleStatus.FRAME_LENGTH);
+    }
+
+    static File[] segments(File directory)
+    {
+        File[] files = directory.listFiles();
+        if(files == null)
+            return new File[0];
+        int count = 0;
+        for(File file : files)
+        {
+            if(file.getName().startsWith("segment-") && file.getName().endsWith(SUFFIX))
+                files[count++] = file;
+        }
+        File[] segments = Arrays.copyOf(files, count);
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Streams every recorded frame of the journal in directory to the listener, in recording order.
+     * With speed above 0 the original spacing is kept, divided by speed, 0 replays as fast as possible.
+     * One frame buffer is reused for the whole replay. Returns the number of frames replayed.
+     */
+    public static long replay(File directory, IOnJournalFrame listener, double speed) throws IOException, InterruptedException
+    {
+        byte[] frame = new byte[KettleStatus.FRAME_LENGTH];
+        long replayed = 0;
+        long firstTime = 0;
+        long startedAt = 0;
+        for(File file : segments(directory))
+        {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try
+            {
+                FileChannel channel = raf.getChannel();
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                segment.order(ByteOrder.BIG_ENDIAN);
+                if(segment.limit() < HEADER_SIZE || segment.getInt(0) != MAGIC)
+                    continue;
+                int recordSize = segment.getInt(4);
+                int limit = segment.limit();
+                for(int position = HEADER_SIZE; position + recordSize <= limit; position += recordSize)
+                {
+                    if(segment.get(position + recordSize - 1) != COMMITTED)
+                        break;
+                    long time = segment.getLong(position);
+                    long mac = 0;
+                    for(int i = 0; i < 6; i++)
+                        mac = (mac << 8) | (segment.get(position + 8 + i) & 0xff);
+                    for(int i = 0; i < KettleStatus.FRAME_LENGTH; i++)
+                        frame[i] = segment.get(position + 14 + i);
+
+                    if(speed > 0)
+                    {
+                        if(replayed == 0)
+                        {
+                            firstTime = time;
+                            startedAt = System.currentTimeMillis();
+                        }
+                        long wait = startedAt + (long) ((time - firstTime) / speed) - System.currentTimeMillis();
+                        if(wait > 0)
+                            Thread.sleep(wait);
+                    }
+                    listener.onFrame(mac, time, frame);
+                    replayed++;
+                }
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+        return replayed;
+    }
+}
@@ -0,0 +1,180 @@
+package org.sombrenuit.dk.kettleboy;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * One listener on the status notification stream of a {@link KettleClient}.
+ * Frames are queued here and handed to the listener on its own executor, one at a time and in order,
+ * so a slow listener only ever delays itself. When the queue is full the oldest frame is dropped,
+ * with {@link Overflow#LATEST_ONLY} only the newest frame is ever kept.
+ * Frames are shared between listeners and must not be modified.
+ */
+public class StatusSubscription
+{
+    public enum Overflow
+    {
+        DROP_OLDEST,
+        LATEST_ONLY
+    }
+
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private final KettleClient owner;
+    private final IOnData<byte[]> listener;
+    private final Executor executor;
+    private final int capacity;
+    private final Overflow overflow;
+
+    private final ArrayDeque<byte[]> frames;
+    private boolean draining;
+    //when the running drain was handed to the executor, 0 when not measured
+    private long drainScheduledAt;
+    private volatile boolean cancelled;
+    private long dropped;
+
+    private final Runnable drain = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            drain();
+        }
+    };
+
+    StatusSubscription(KettleClient owner, IOnData<byte[]> listener, Executor executor, int capacity, Overflow overflow)
+    {
+        if(capacity < 1)
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        this.owner = owner;
+        this.listener = listener;
+        this.executor = executor;
+        this.capacity = overflow == Overflow.LATEST_ONLY ? 1 : capacity;
+        this.overflow = overflow;
+        this.frames = new ArrayDeque<>(this.capacity);
+    }
+
+    public Overflow getOverflow()
+    {
+        return overflow;
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    //Frames thrown away because the listener did not keep up
+    public synchronized long getDropped()
+    {
+        return dropped;
+    }
+
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    //Ms until the kettle reaches its target as of now, -1 when unknown or the client has no EtaEstimator
+    public long getEtaMillis()
+    {
+        EtaEstimator estimator = owner.getEstimator();
+        return estimator == null ? -1 : estimator.remainingMillis(System.currentTimeMillis());
+    }
+
+    //0 to 1, how far getEtaMillis can be trusted
+    public double getEtaConfidence()
+    {
+        EtaEstimator estimator = owner.getEstimator();
+        return estimator == null ? 0 : estimator.getConfidence();
+    }
+
+    //Stops delivery, frames still queued are discarded
+    public void cancel()
+    {
+        synchronized (this)
+        {
+            if(cancelled)
+                return;
+            cancelled = true;
+            frames.clear();
+        }
+        owner.unsubscribe(this);
+    }
+
+    //Called on the thread delivering notifications, never runs the listener itself
+    void offer(byte[] frame)
+    {
+        synchronized (this)
+        {
+            if(cancelled)
+                return;
+            if(frames.size() >= capacity)
+            {
+                frames.pollFirst();
+                dropped++;
+            }
+            frames.addLast(frame);
+            if(draining)
+                return;
+            draining = true;
+            drainScheduledAt = owner.getMetrics() != null ? System.nanoTime() : 0;
+        }
+        try
+        {
+            executor.execute(drain);
+        }
+        catch (RejectedExecutionException e)
+        {
+            synchronized (this)
+            {
+                draining = false;
+                dropped += frames.size();
+                frames.clear();
+            }
+        }
+    }
+
+    private void drain()
+    {
+        boolean done = false;
+        long scheduledAt;
+        synchronized (this)
+        {
+            scheduledAt = drainScheduledAt;
+        }
+        KettleMetrics metrics = owner.getMetrics();
+        if(metrics != null && scheduledAt != 0)
+            metrics.onDispatch(owner.getMac(), System.nanoTime() - scheduledAt);
+        try
+        {
+            while(true)
+            {
+                byte[] frame;
+                synchronized (this)
+                {
+                    frame = cancelled ? null : frames.pollFirst();
+                    if(frame == null)
+                    {
+                        draining = false;
+                        done = true;
+                        return;
+                    }
+                }
+                listener.onData(frame);
+            }
+        }
+        finally
+        {
+            //a throwing listener must not leave the subscription stuck, the next frame starts a new drain
+            if(!done)
+            {
+                synchronized (this)
+                {
+                    draining = false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.sombrenuit.dk.kettleboy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+//Resolving the kettle characteristics, cached index slot against the checkUUID scan done before every connection
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AttributeLookupBenchmark
+{
+    private static final int[][] LAYOUT = {
+            {KettleProtocol.UUID_SERVICE_AUTH, KettleProtocol.UUID_AUTH_INIT, KettleProtocol.UUID_AUTH, KettleProtocol.UUID_VERSION},
+            {KettleProtocol.UUID_SERVICE_HARDWARE, KettleProtocol.UUID_NAME, KettleProtocol.UUID_FIRMWARE, KettleProtocol.UUID_MCU_VERSION},
+            {KettleProtocol.UUID_SERVICE_DATA, KettleProtocol.UUID_SETUP, KettleProtocol.UUID_STATUS, KettleProtocol.UUID_TIME, KettleProtocol.UUID_BOIL_MODE},
+    };
+
+    private GattAttributeIndex index;
+    private List<UUID> serviceUuids;
+    private List<List<UUID>> characteristicUuids;
+    private String[][] shortUuids;
+
+    @Setup
+    public void setup()
+    {
+        index = GattAttributeIndex.forMac("A1:B2:C3:D4:E5:F6");
+        index.invalidate();
+        serviceUuids = new ArrayList<>();
+        characteristicUuids = new ArrayList<>();
+        shortUuids = new String[LAYOUT.length][];
+        int handle = 1;
+        for(int l = 0; l < LAYOUT.length; l++)
+        {
+            int[] service = LAYOUT[l];
+            shortUuids[l] = new String[service.length];
+            for(int i = 0; i < service.length; i++)
+                shortUuids[l][i] = String.format("%04x", service[i]);
+            serviceUuids.add(fullUuid(service[0]));
+            index.add(service[0], 0, handle++);
+            List<UUID> chars = new ArrayList<>();
+            for(int i = 1; i < service.length; i++)
+            {
+                chars.add(fullUuid(service[i]));
+                index.add(service[0], service[i], handle++);
+            }
+            characteristicUuids.add(chars);
+        }
+        index.markComplete();
+    }
+
+    @Benchmark
+    public int indexLookupAll()
+    {
+        int sum = 0;
+        for(int[] service : LAYOUT)
+        {
+            for(int i = 1; i < service.length; i++)
+                sum += index.slot(service[0], service[i]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int checkUUIDScanAll()
+    {
+        int found = 0;
+        for(String[] service : shortUuids)
+        {
+            for(int s = 0; s < serviceUuids.size(); s++)
+            {
+                if(!KettleProtocol.checkUUID(serviceUuids.get(s).toString(), service[0]))
+                    continue;
+                for(int i = 1; i < service.length; i++)
+                {
+                    String uuid = service[i];
+                    for(UUID c : characteristicUuids.get(s))
+                    {
+                        if(KettleProtocol.checkUUID(c.toString(), uuid))
+                            found++;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    private static UUID fullUuid(int shortUuid)
+    {
+        return new UUID(((long) shortUuid << 32) | 0x1000L, 0x800000805f9b34fbL);
+    }
+}
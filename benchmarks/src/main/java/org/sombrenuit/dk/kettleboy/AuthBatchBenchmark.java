@@ -0,0 +1,83 @@
+package org.sombrenuit.dk.kettleboy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Auth state for a whole fleet after a gateway restart: every kettle computing its own
+ * payloads one after the other, against the batch precompute on a thread pool.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AuthBatchBenchmark
+{
+    @Param({"50"})
+    public int kettles;
+
+    private List<KettleClient> clients;
+    private ScheduledExecutorService scheduler;
+    private ExecutorService pool;
+
+    @Setup
+    public void setup()
+    {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        clients = new ArrayList<>(kettles);
+        for(int i = 0; i < kettles; i++)
+        {
+            String mac = String.format("A1:B2:C3:D4:%02X:%02X", i >> 8, i & 0xff);
+            clients.add(new KettleClient(mac, (byte) 275, new SimulatedKettle(mac, (byte) 275, scheduler)));
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void restart()
+    {
+        KettleCipher.clear();
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        pool.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+    @Benchmark
+    public int sequential()
+    {
+        int n = 0;
+        for(KettleClient client : clients)
+            n += client.keys().authPayload().length;
+        return n;
+    }
+
+    @Benchmark
+    public int batch() throws InterruptedException
+    {
+        return KettleCipher.precompute(clients, pool);
+    }
+}
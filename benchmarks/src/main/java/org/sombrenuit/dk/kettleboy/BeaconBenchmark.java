@@ -0,0 +1,70 @@
+package org.sombrenuit.dk.kettleboy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BeaconBenchmark
+{
+    private static final String MAC = "AA:BB:CC:DD:EE:FF";
+    //v3 frame with the mac and a 0x1005 object: heater on, 43 degrees
+    private static final byte[] ADVERTISEMENT = {0x50, 0x30, (byte) 0x83, 0x00, 0x12,
+            (byte) 0xff, (byte) 0xee, (byte) 0xdd, (byte) 0xcc, (byte) 0xbb, (byte) 0xaa,
+            0x05, 0x10, 0x02, 0x01, 0x2b};
+
+    private final MiBeacon beacon = new MiBeacon();
+    private final BeaconMonitor monitor = new BeaconMonitor();
+    private ScheduledExecutorService scheduler;
+    private KettleClient client;
+    private long macKey;
+
+    @Setup
+    public void setup()
+    {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        client = new KettleClient(MAC, (byte) 131, KettleProtocol.generateRandomToken(),
+                new SimulatedKettle(MAC, (byte) 131, scheduler), scheduler, 2000, 2);
+        monitor.register(client);
+        macKey = client.getMacKey();
+        monitor.onServiceData(macKey, ADVERTISEMENT, System.currentTimeMillis());
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        client.destroy();
+        scheduler.shutdownNow();
+    }
+
+    @Benchmark
+    public int parse()
+    {
+        MiBeacon.parse(ADVERTISEMENT, beacon);
+        return beacon.getTemperature();
+    }
+
+    //The common case: the kettle repeating an advertisement that was already handled
+    @Benchmark
+    public boolean duplicate()
+    {
+        return monitor.onServiceData(macKey, ADVERTISEMENT, 0);
+    }
+}
@@ -0,0 +1,86 @@
+package org.sombrenuit.dk.kettleboy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Cost of handing a callback to a kettle's event loop and having it run, 1000 at a time
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EventLoopBenchmark
+{
+    private static final int TASKS = 1000;
+
+    private ExecutorService pool;
+    private KettleEventLoop loop;
+    private ExecutorService single;
+    private final AtomicLong done = new AtomicLong();
+    private long posted;
+
+    private final Runnable task = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            done.incrementAndGet();
+        }
+    };
+
+    @Setup
+    public void setup()
+    {
+        pool = Executors.newFixedThreadPool(2);
+        loop = new KettleEventLoop(pool);
+        single = Executors.newSingleThreadExecutor();
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        pool.shutdownNow();
+        single.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASKS)
+    public long eventLoop()
+    {
+        return run(loop);
+    }
+
+    //A single thread executor per kettle, the usual way to get the same ordering
+    @Benchmark
+    @OperationsPerInvocation(TASKS)
+    public long singleThreadExecutor()
+    {
+        return run(single);
+    }
+
+    private long run(java.util.concurrent.Executor executor)
+    {
+        for(int i = 0; i < TASKS; i++)
+            executor.execute(task);
+        posted += TASKS;
+        while(done.get() < posted)
+            Thread.yield();
+        return posted;
+    }
+}
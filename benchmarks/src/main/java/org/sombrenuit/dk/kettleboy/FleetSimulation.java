@@ -0,0 +1,74 @@
+package org.sombrenuit.dk.kettleboy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Runs N simulated kettles through a KettleFleet with a limited number of slots
+ * and reports how out of date each kettle's status gets. Slots in use are the links the simulated
+ * kettles actually have up, not the slots the fleet handed out.
+ * Arguments: kettles slots rotationMs seconds heating
+ */
+public class FleetSimulation
+{
+    public static void main(String[] args) throws Exception
+    {
+        int kettles = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+        int slots = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        long rotation = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+        long seconds = args.length > 3 ? Long.parseLong(args[3]) : 20;
+        int heating = args.length > 4 ? Integer.parseInt(args[4]) : 2;
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+        KettleFleet fleet = new KettleFleet(slots, scheduler);
+        fleet.setRotationInterval(rotation);
+        List<SimulatedKettle> simulated = new ArrayList<>();
+        for(int i = 0; i < kettles; i++)
+        {
+            String mac = String.format("A1:B2:C3:D4:%02X:%02X", i >> 8, i & 0xff);
+            SimulatedKettle kettle = new SimulatedKettle(mac, (byte) 275, scheduler, 15, 10, 0, i);
+            kettle.setNotifyInterval(250);
+            if(i < heating)
+                kettle.setStatus(1, 1, 100, 40, 0, 0);
+            simulated.add(kettle);
+            fleet.add(new KettleClient(mac, (byte) 275, null, kettle, scheduler, 500, KettleClient.DEFAULT_RETRIES));
+        }
+
+        fleet.start();
+        long maxInUse = 0;
+        for(long elapsed = 0; elapsed < seconds * 1000; elapsed += 100)
+        {
+            Thread.sleep(100);
+            int connected = 0;
+            for(SimulatedKettle kettle : simulated)
+            {
+                if(kettle.isConnected())
+                    connected++;
+            }
+            maxInUse = Math.max(maxInUse, connected);
+        }
+
+        List<KettleFleet.Stats> stats = fleet.stats();
+        long[] staleness = new long[stats.size()];
+        int never = 0;
+        for(int i = 0; i < staleness.length; i++)
+        {
+            staleness[i] = stats.get(i).stalenessMillis;
+            if(staleness[i] < 0)
+                never++;
+        }
+        Arrays.sort(staleness);
+        System.out.printf("kettles=%d slots=%d rotation=%dms heating=%d run=%ds%n", kettles, slots, rotation, heating, seconds);
+        System.out.printf("max slots in use=%d never reported=%d%n", maxInUse, never);
+        System.out.printf("staleness p50=%dms p90=%dms max=%dms%n",
+                staleness[staleness.length / 2], staleness[(int) (staleness.length * 0.9)], staleness[staleness.length - 1]);
+        for(int i = 0; i < Math.min(heating, stats.size()); i++)
+            System.out.println(stats.get(i));
+
+        fleet.stop();
+        scheduler.shutdownNow();
+    }
+}
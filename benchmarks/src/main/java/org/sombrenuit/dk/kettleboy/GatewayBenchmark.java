@@ -0,0 +1,64 @@
+package org.sombrenuit.dk.kettleboy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+//Snapshot round trips over loopback, answered from the cache of a simulated kettle
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GatewayBenchmark
+{
+    private static final String MAC = "AA:BB:CC:DD:EE:FF";
+
+    private ScheduledExecutorService scheduler;
+    private KettleClient client;
+    private KettleGateway gateway;
+    private GatewayClient connection;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        client = new KettleClient(MAC, (byte) 131, KettleProtocol.generateRandomToken(),
+                new SimulatedKettle(MAC, (byte) 131, scheduler), scheduler, 2000, 2);
+        gateway = new KettleGateway(new InetSocketAddress("127.0.0.1", 0));
+        gateway.add(client);
+        gateway.start();
+        connection = new GatewayClient(gateway.getAddress());
+        //the first one connects to the kettle and fills its cache
+        connection.snapshot(MAC);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        connection.close();
+        gateway.stop();
+        client.destroy();
+        scheduler.shutdownNow();
+    }
+
+    @Benchmark
+    public GatewayClient.Status snapshot() throws Exception
+    {
+        return connection.snapshot(MAC);
+    }
+}
@@ -0,0 +1,77 @@
+package org.sombrenuit.dk.kettleboy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HistoryBenchmark
+{
+    private StatusHistory history;
+    private StatusHistory.Samples samples;
+    private StatusHistory.Buckets buckets;
+    private EtaEstimator estimator;
+    private byte[] frame;
+    private long time;
+
+    @Setup
+    public void setup()
+    {
+        history = new StatusHistory();
+        samples = new StatusHistory.Samples(256);
+        buckets = new StatusHistory.Buckets(256);
+        estimator = new EtaEstimator();
+        frame = new byte[]{0x01, 0x01, 0x00, 0x00, 0x5A, 0x40, 0x00, 0x02, (byte) 0xD0};
+        //a month of frames every 5s
+        for(int i = 0; i < 31 * 24 * 720; i++)
+        {
+            frame[5] = (byte) (20 + i % 70);
+            history.record(time, frame);
+            time += 5000;
+        }
+    }
+
+    @Benchmark
+    public long record()
+    {
+        time += 500;
+        history.record(time, frame);
+        return time;
+    }
+
+    @Benchmark
+    public int readLast256()
+    {
+        return history.read(time - 256 * 5000L, Long.MAX_VALUE, samples);
+    }
+
+    @Benchmark
+    public int readHourlyWeek()
+    {
+        return history.readBuckets(2, time - 7 * 24 * 3600000L, Long.MAX_VALUE, buckets);
+    }
+
+    //A kettle heating at 1 degree every 4 frames, wrapping before it reaches the target
+    @Benchmark
+    public long estimate()
+    {
+        time += 500;
+        frame[5] = (byte) (20 + (time / 2000) % 70);
+        estimator.update(time, frame);
+        return estimator.getEtaMillis();
+    }
+}
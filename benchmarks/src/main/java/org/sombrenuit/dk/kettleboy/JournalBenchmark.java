@@ -0,0 +1,106 @@
+package org.sombrenuit.dk.kettleboy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JournalBenchmark
+{
+    private static final int FRAMES = 1000000;
+
+    private File directory;
+    private StatusJournal journal;
+    private File appendDirectory;
+    private byte[] frame;
+    private long time;
+    private final KettleStatus status = new KettleStatus();
+    private long checksum;
+
+    private final IOnJournalFrame decode = new IOnJournalFrame()
+    {
+        @Override
+        public void onFrame(long mac, long time, byte[] frame)
+        {
+            KettleStatus.decode(frame, status);
+            checksum += status.getCurrentTemperature();
+        }
+    };
+
+    @Setup
+    public void setup() throws Exception
+    {
+        frame = new byte[]{0x01, 0x01, 0x00, 0x00, 0x5A, 0x40, 0x00, 0x02, (byte) 0xD0};
+        long mac = StatusJournal.macKey("AA:BB:CC:DD:EE:FF");
+
+        //a million frames, 16 segments of 1.5MB
+        directory = Files.createTempDirectory("journal-replay").toFile();
+        StatusJournal recorded = new StatusJournal(directory, 1536 * 1024, StatusJournal.DEFAULT_RING_RECORDS, 0);
+        for(int i = 0; i < FRAMES; i++)
+        {
+            frame[5] = (byte) (20 + i % 70);
+            recorded.append(mac, i * 500L, frame);
+            if(i % 4096 == 0)
+                recorded.flush();
+        }
+        recorded.close();
+
+        appendDirectory = Files.createTempDirectory("journal-append").toFile();
+        journal = new StatusJournal(appendDirectory);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        journal.close();
+        delete(directory);
+        delete(appendDirectory);
+    }
+
+    //Frames handed to the journal thread per second, the cost seen by the bluetooth callback thread
+    @Benchmark
+    public long append()
+    {
+        time += 500;
+        journal.append(0xAABBCCDDEEFFL, time, frame);
+        return time;
+    }
+
+    //One op replays and decodes a million frames as fast as possible
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long replayMillion() throws Exception
+    {
+        StatusJournal.replay(directory, decode, 0);
+        return checksum;
+    }
+
+    private static void delete(File directory)
+    {
+        File[] files = directory.listFiles();
+        if(files != null)
+        {
+            for(File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+}
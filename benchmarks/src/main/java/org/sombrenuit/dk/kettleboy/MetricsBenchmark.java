@@ -0,0 +1,66 @@
+package org.sombrenuit.dk.kettleboy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark
+{
+    private static final String MAC = "AA:BB:CC:DD:EE:FF";
+
+    private final MetricsRecorder recorder = new MetricsRecorder();
+    private final ConcurrentHistogram histogram = new ConcurrentHistogram();
+    private final LatencyHistogram locked = new LatencyHistogram();
+    private long value = 12345;
+
+    @Benchmark
+    public long histogramRecord()
+    {
+        value += 7919;
+        histogram.record(value & 0xfffff);
+        return value;
+    }
+
+    //The synchronized histogram the client used so far, for comparison
+    @Benchmark
+    public long lockedHistogramRecord()
+    {
+        value += 7919;
+        locked.record(value & 0xfffff);
+        return value;
+    }
+
+    @Benchmark
+    public void notification()
+    {
+        recorder.onNotification(MAC);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void notificationContended()
+    {
+        recorder.onNotification(MAC);
+    }
+
+    @Benchmark
+    public void phase()
+    {
+        recorder.onPhase(MAC, KettleMetrics.Phase.AUTH, 250000000L, true);
+    }
+}
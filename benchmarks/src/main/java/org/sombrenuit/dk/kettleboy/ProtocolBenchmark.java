@@ -0,0 +1,140 @@
+package org.sombrenuit.dk.kettleboy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolBenchmark
+{
+    private static final String MAC = "A1:B2:C3:D4:E5:F6";
+    private static final byte PRODUCT_ID = (byte) 275;
+    private static final String AUTH_UUID = "0000fe95-0000-1000-8000-00805f9b34fb";
+
+    private byte[] reversedMac;
+    private byte[] token;
+    private byte[] key2;
+    private byte[] mixedKey;
+    private byte[] tokenPerm;
+    private byte[] statusFrame;
+    private byte[] kwTime;
+    private KettleStatus status;
+
+    @Setup
+    public void setup()
+    {
+        reversedMac = KettleProtocol.reverseMac(MAC);
+        token = KettleProtocol.generateRandomToken();
+        key2 = new byte[]{(byte) 0x92, (byte) 0xAB, (byte) 0x54, (byte) 0xFA};
+        mixedKey = KettleProtocol.mixA(reversedMac, PRODUCT_ID);
+        tokenPerm = KettleProtocol._cipherInit(token);
+        //heating, boil mode, set 90, current 64, warm up, 720 minutes
+        statusFrame = new byte[]{0x01, 0x01, 0x00, 0x00, 0x5A, 0x40, 0x00, 0x02, (byte) 0xD0};
+        kwTime = new byte[]{statusFrame[7], statusFrame[8]};
+        status = new KettleStatus();
+    }
+
+    @Benchmark
+    public byte[] cipherInit()
+    {
+        return KettleProtocol._cipherInit(mixedKey);
+    }
+
+    //_cipherCrypt mutates the permutation, so every call works on a fresh copy
+    @Benchmark
+    public byte[] cipherCrypt()
+    {
+        return KettleProtocol._cipherCrypt(token, tokenPerm.clone());
+    }
+
+    @Benchmark
+    public byte[] cipherAuthPayload()
+    {
+        return KettleProtocol.cipher(mixedKey, token);
+    }
+
+    @Benchmark
+    public byte[] cipherKey2()
+    {
+        return KettleProtocol.cipher(token, key2);
+    }
+
+    //both handshake payloads, two key schedules each time
+    @Benchmark
+    public byte[] authPayloadsUncached()
+    {
+        KettleProtocol.cipher(KettleProtocol.mixA(reversedMac, PRODUCT_ID), token);
+        return KettleProtocol.cipher(token, key2);
+    }
+
+    @Benchmark
+    public byte[] authPayloadsCached()
+    {
+        KettleCipher cached = KettleCipher.forKettle(MAC, reversedMac, PRODUCT_ID, token);
+        cached.authPayload();
+        return cached.key2Payload();
+    }
+
+    @Benchmark
+    public byte[] mixA()
+    {
+        return KettleProtocol.mixA(reversedMac, PRODUCT_ID);
+    }
+
+    @Benchmark
+    public byte[] mixB()
+    {
+        return KettleProtocol.mixB(reversedMac, PRODUCT_ID);
+    }
+
+    @Benchmark
+    public byte[] reverseMac()
+    {
+        return KettleProtocol.reverseMac(MAC);
+    }
+
+    @Benchmark
+    public HashMap<String, String> parseData()
+    {
+        return KettleProtocol.parse_data(statusFrame);
+    }
+
+    @Benchmark
+    public KettleStatus decodeStatusReused()
+    {
+        return KettleStatus.decode(statusFrame, status);
+    }
+
+    @Benchmark
+    public int bytesToInt()
+    {
+        return KettleProtocol.bytes_to_int(kwTime);
+    }
+
+    @Benchmark
+    public boolean checkUUIDMatch()
+    {
+        return KettleProtocol.checkUUID(AUTH_UUID, "fe95");
+    }
+
+    @Benchmark
+    public boolean checkUUIDMiss()
+    {
+        return KettleProtocol.checkUUID(AUTH_UUID, "180a");
+    }
+}
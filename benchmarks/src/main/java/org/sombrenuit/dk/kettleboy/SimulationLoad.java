@@ -0,0 +1,94 @@
+package org.sombrenuit.dk.kettleboy;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Connects, authenticates and subscribes N simulated kettles and reports
+ * time-to-first-status and notification throughput.
+ * Arguments: kettles latencyMs jitterMs dropRate seconds timeoutMs
+ */
+public class SimulationLoad
+{
+    public static void main(String[] args) throws Exception
+    {
+        final int kettles = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        long latency = args.length > 1 ? Long.parseLong(args[1]) : 15;
+        long jitter = args.length > 2 ? Long.parseLong(args[2]) : 10;
+        double dropRate = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+        long seconds = args.length > 4 ? Long.parseLong(args[4]) : 10;
+        long timeout = args.length > 5 ? Long.parseLong(args[5]) : 500;
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+        final AtomicLongArray firstStatus = new AtomicLongArray(kettles);
+        final AtomicLong notifications = new AtomicLong();
+        final CountDownLatch ready = new CountDownLatch(kettles);
+        KettleClient[] clients = new KettleClient[kettles];
+
+        final long start = System.nanoTime();
+        for(int i = 0; i < kettles; i++)
+        {
+            String mac = String.format("A1:B2:C3:D4:%02X:%02X", i >> 8, i & 0xff);
+            SimulatedKettle kettle = new SimulatedKettle(mac, (byte) 275, scheduler, latency, jitter, dropRate, i);
+            kettle.setNotifyInterval(250);
+            clients[i] = new KettleClient(mac, (byte) 275, null, kettle, scheduler, timeout, KettleClient.DEFAULT_RETRIES);
+            final int index = i;
+            clients[i].subscribe(new IOnData<byte[]>()
+            {
+                @Override
+                public void onData(byte[] val)
+                {
+                    notifications.incrementAndGet();
+                    if(firstStatus.compareAndSet(index, 0, System.nanoTime() - start))
+                        ready.countDown();
+                }
+            });
+        }
+
+        ready.await(seconds, TimeUnit.SECONDS);
+        long readyAt = System.nanoTime();
+        long before = notifications.get();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        long rate = (notifications.get() - before) / Math.max(1, seconds);
+
+        long[] ttfs = new long[kettles];
+        int stalled = 0;
+        for(int i = 0; i < kettles; i++)
+        {
+            ttfs[i] = firstStatus.get(i);
+            if(ttfs[i] == 0)
+                stalled++;
+        }
+        Arrays.sort(ttfs);
+        int offset = stalled;
+        int done = kettles - stalled;
+        System.out.printf("kettles=%d latency=%dms jitter=%dms drop=%.3f timeout=%dms%n", kettles, latency, jitter, dropRate, timeout);
+        System.out.printf("ready=%d stalled=%d all ready after %.1fms%n", done, stalled, (readyAt - start) / 1e6);
+        if(done > 0)
+        {
+            System.out.printf("time to first status p50=%.1fms p99=%.1fms max=%.1fms%n",
+                    ttfs[offset + done / 2] / 1e6, ttfs[offset + (int) (done * 0.99)] / 1e6 , ttfs[kettles - 1] / 1e6);
+        }
+        System.out.printf("notifications/s=%d%n", rate);
+        long reconnects = 0;
+        long failed = 0;
+        LatencyHistogram recovery = new LatencyHistogram();
+        for(KettleClient client : clients)
+        {
+            reconnects += client.getReconnects();
+            failed += client.getFailedReconnects();
+            if(client.getTimeToFirstStatus().getCount() > 1)
+                recovery.record(client.getTimeToFirstStatus().getMax());
+        }
+        System.out.printf("reconnects=%d failed=%d worst time to status per reconnected kettle: %s%n", reconnects, failed, recovery);
+
+        for(KettleClient client : clients)
+            client.destroy();
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,82 @@
+package org.sombrenuit.dk.kettleboy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class DutyCycledSubscriptionTest
+{
+    private static final String MAC = "AA:BB:CC:DD:EE:FF";
+    private static final byte PRODUCT_ID = (byte) 131;
+    private static final IOnData<byte[]> IGNORE = new IOnData<byte[]>()
+    {
+        @Override
+        public void onData(byte[] val)
+        {
+        }
+    };
+
+    private ScheduledExecutorService scheduler;
+
+    @Before
+    public void setUp()
+    {
+        scheduler = Executors.newScheduledThreadPool(2);
+    }
+
+    @After
+    public void tearDown()
+    {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void sampleTimingOutWhileOpeningDropsTheLink() throws Exception
+    {
+        //every round trip takes 40ms, a sample gives up after 30ms, long before its session is ready
+        SimulatedKettle kettle = new SimulatedKettle(MAC, PRODUCT_ID, scheduler, 40, 0, 0, 1);
+        kettle.setNotifyInterval(50);
+        KettleClient client = new KettleClient(MAC, PRODUCT_ID, null, kettle, scheduler, 2000, 2);
+        DutyCycledSubscription subscription = new DutyCycledSubscription(client, IGNORE,
+                new DutyCyclePolicy(200, 300, 5000, 4, 30), scheduler);
+        subscription.start();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while(subscription.getSamples() == 0 || subscription.getMode() != DutyCycledSubscription.Mode.SLEEPING)
+        {
+            if(System.currentTimeMillis() > deadline)
+                fail("No sample timed out, mode " + subscription.getMode());
+            Thread.sleep(2);
+        }
+
+        //the next sample is 300ms away, the link of the timed out one must be gone before
+        Thread.sleep(150);
+        assertFalse(kettle.isConnected());
+        assertEquals(KettleClient.SessionState.CLOSED, client.getSessionState());
+        assertEquals(0, client.getSubscriberCount());
+        subscription.stop();
+    }
+
+    @Test
+    public void stopDropsTheLink() throws Exception
+    {
+        SimulatedKettle kettle = new SimulatedKettle(MAC, PRODUCT_ID, scheduler, 5, 0, 0, 1);
+        KettleClient client = new KettleClient(MAC, PRODUCT_ID, null, kettle, scheduler, 2000, 2);
+        DutyCycledSubscription subscription = new DutyCycledSubscription(client, IGNORE,
+                DutyCyclePolicy.DEFAULT, scheduler);
+        subscription.start();
+        KettleClientTest.awaitState(client, KettleClient.SessionState.OPENING, 1000);
+        subscription.stop();
+
+        Thread.sleep(300);
+        assertFalse(kettle.isConnected());
+        assertEquals(KettleClient.SessionState.CLOSED, client.getSessionState());
+    }
+}
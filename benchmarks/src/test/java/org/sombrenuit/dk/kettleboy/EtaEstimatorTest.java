@@ -0,0 +1,137 @@
+package org.sombrenuit.dk.kettleboy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EtaEstimatorTest
+{
+    private static final int HEATING = KettleStatus.Action.HEATING.code;
+    private static final int COOLING = KettleStatus.Action.COOLING.code;
+    private static final int IDLE = KettleStatus.Action.IDLE.code;
+    private static final int NO_MODE = KettleStatus.Mode.NONE.code;
+
+    private static byte[] frame(int action, int mode, int set, int current)
+    {
+        return StatusDeltaFilterTest.frame(action, mode, set, current, 0, 0);
+    }
+
+    private static void assertClose(String what, double expected, double actual, double tolerance)
+    {
+        assertTrue(what + ": expected " + expected + " +- " + tolerance + ", got " + actual,
+                Math.abs(expected - actual) <= tolerance);
+    }
+
+    @Test
+    public void constantRateIsExactAndConfidenceGrowsWithSamples()
+    {
+        EtaEstimator estimator = new EtaEstimator();
+        //one degree a second up to 90, the first degree only marks where the samples start
+        estimator.update(0, frame(HEATING, NO_MODE, 90, 20));
+        assertEquals(-1, estimator.getEtaMillis());
+        assertEquals(0, estimator.getConfidence(), 0);
+        estimator.update(1000, frame(HEATING, NO_MODE, 90, 21));
+        assertEquals(-1, estimator.getEtaMillis());
+
+        for(int samples = 1; samples <= 2 * EtaEstimator.CONFIDENT_SAMPLES; samples++)
+        {
+            int temperature = 21 + samples;
+            estimator.update(1000L * (samples + 1), frame(HEATING, NO_MODE, 90, temperature));
+            assertEquals(90, estimator.getTargetTemperature());
+            assertEquals((90 - temperature) * 1000L, estimator.getEtaMillis(), 1);
+            //a perfect fit, only the sample count holds the confidence back
+            assertEquals(Math.min(1.0, (double) samples / EtaEstimator.CONFIDENT_SAMPLES), estimator.getConfidence(), 1e-9);
+        }
+    }
+
+    @Test
+    public void heatingConvergesOnTheBoilPoint()
+    {
+        EtaEstimator estimator = new EtaEstimator();
+        //full power against losses that grow with the temperature, read every half second
+        double[] curve = new double[1000];
+        double temperature = 20;
+        int boiledAt = -1;
+        for(int i = 0; i < curve.length; i++)
+        {
+            curve[i] = temperature;
+            if(boiledAt < 0 && temperature >= EtaEstimator.BOIL_TEMPERATURE)
+                boiledAt = i;
+            temperature += 0.5 * (0.6 - 0.003 * (temperature - 20));
+        }
+        assertTrue(boiledAt > 0);
+
+        for(int i = 0; i < boiledAt; i++)
+        {
+            int reading = (int) curve[i];
+            estimator.update(i * 500L, frame(HEATING, KettleStatus.Mode.BOIL.code, 40, reading));
+            assertEquals(EtaEstimator.BOIL_TEMPERATURE, estimator.getTargetTemperature());
+            //past the first half of the way the estimate is within 10% and a few seconds of the truth
+            if(reading >= 60)
+            {
+                long truth = (boiledAt - i) * 500L;
+                assertClose("eta at " + reading, truth, estimator.getEtaMillis(), 0.1 * truth + 3000);
+                assertTrue(estimator.getConfidence() > 0.8);
+            }
+        }
+
+        estimator.update(boiledAt * 500L, frame(HEATING, KettleStatus.Mode.BOIL.code, 40, 100));
+        assertEquals(0, estimator.getEtaMillis());
+        assertEquals(1, estimator.getConfidence(), 0);
+    }
+
+    @Test
+    public void coolingFollowsTheExponentialCurve()
+    {
+        EtaEstimator estimator = new EtaEstimator();
+        //newton cooling from 100 towards a 20 degree room, 60 is reached after 1800 ln 2 seconds
+        double reachedAt = 1800 * Math.log(2);
+        for(int second = 0; second < reachedAt; second += 5)
+        {
+            int reading = (int) (20 + 80 * Math.exp(-second / 1800.0));
+            estimator.update(second * 1000L, frame(COOLING, KettleStatus.Mode.KEEP_WARM.code, 60, reading));
+            //the readings are whole degrees, a degree of this curve takes up to 45s near the target
+            if(reading <= 80 && reading > 60)
+            {
+                double truth = (reachedAt - second) * 1000;
+                assertClose("eta at " + reading, truth, estimator.getEtaMillis(), 0.05 * truth + 45000);
+                assertTrue(estimator.getConfidence() > 0.8);
+            }
+        }
+    }
+
+    @Test
+    public void remainingCountsDownBetweenFrames()
+    {
+        EtaEstimator estimator = new EtaEstimator();
+        for(int i = 0; i <= 10; i++)
+            estimator.update(10000 + 1000L * i, frame(HEATING, NO_MODE, 90, 20 + i));
+        assertEquals(60000, estimator.getEtaMillis(), 1);
+        assertEquals(20000, estimator.getEstimatedAt());
+        assertEquals(estimator.getEtaMillis() - 15000, estimator.remainingMillis(35000));
+        assertEquals(0, estimator.remainingMillis(200000));
+    }
+
+    @Test
+    public void actionChangeStartsOver()
+    {
+        EtaEstimator estimator = new EtaEstimator();
+        for(int i = 0; i <= 10; i++)
+            estimator.update(1000L * i, frame(HEATING, NO_MODE, 90, 20 + i));
+        assertTrue(estimator.getEtaMillis() > 0);
+
+        estimator.update(11000, frame(IDLE, NO_MODE, 90, 30));
+        assertEquals(-1, estimator.getEtaMillis());
+        assertEquals(0, estimator.getConfidence(), 0);
+        assertEquals(-1, estimator.remainingMillis(12000));
+
+        //the earlier samples are gone, two new degrees are needed for the first one
+        estimator.update(12000, frame(HEATING, NO_MODE, 90, 30));
+        estimator.update(13000, frame(HEATING, NO_MODE, 90, 31));
+        assertEquals(-1, estimator.getEtaMillis());
+        estimator.update(14000, frame(HEATING, NO_MODE, 90, 32));
+        assertEquals(58000, estimator.getEtaMillis(), 1);
+        assertEquals(1.0 / EtaEstimator.CONFIDENT_SAMPLES, estimator.getConfidence(), 1e-9);
+    }
+}
@@ -0,0 +1,37 @@
+package org.sombrenuit.dk.kettleboy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GattAttributeIndexTest
+{
+    @Test
+    public void firmwareChangeKeepsTheBoundLayout()
+    {
+        GattAttributeIndex index = GattAttributeIndex.forMac("A0:B0:C0:D0:E0:01");
+        int service = index.add(KettleProtocol.UUID_SERVICE_DATA, 0, 10);
+        int status = index.add(KettleProtocol.UUID_SERVICE_DATA, KettleProtocol.UUID_STATUS, 12);
+        index.markComplete();
+
+        assertFalse(index.setFirmware("1.0.4"));
+        assertTrue(index.setFirmware("1.0.5"));
+
+        //an open link goes on finding its attributes
+        assertTrue(index.isStale());
+        assertTrue(index.isComplete());
+        assertEquals(service, index.slot(KettleProtocol.UUID_SERVICE_DATA, 0));
+        assertEquals(status, index.slot(KettleProtocol.UUID_SERVICE_DATA, KettleProtocol.UUID_STATUS));
+        assertEquals(12, index.handle(status));
+
+        //what the next bind does before it records the new layout
+        index.invalidate();
+        assertFalse(index.isStale());
+        assertFalse(index.isComplete());
+        assertEquals(-1, index.slot(KettleProtocol.UUID_SERVICE_DATA, KettleProtocol.UUID_STATUS));
+        assertFalse(index.setFirmware("1.0.5"));
+        assertFalse(index.isStale());
+    }
+}
@@ -0,0 +1,162 @@
+package org.sombrenuit.dk.kettleboy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KettleClientTest
+{
+    private static final String MAC = "AA:BB:CC:DD:EE:FF";
+    private static final byte PRODUCT_ID = (byte) 131;
+
+    private ScheduledExecutorService scheduler;
+
+    @Before
+    public void setUp()
+    {
+        scheduler = Executors.newScheduledThreadPool(2);
+    }
+
+    @After
+    public void tearDown()
+    {
+        scheduler.shutdownNow();
+    }
+
+    static void awaitState(KettleClient client, KettleClient.SessionState state, long millis) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + millis;
+        while(client.getSessionState() != state)
+        {
+            if(System.currentTimeMillis() > deadline)
+                fail("Session never got " + state + ", still " + client.getSessionState());
+            Thread.sleep(2);
+        }
+    }
+
+    @Test
+    public void closeWhileOpeningFailsWaitersAndStaysClosed() throws Exception
+    {
+        SimulatedKettle kettle = new SimulatedKettle(MAC, PRODUCT_ID, scheduler, 30, 0, 0, 1);
+        KettleClient client = new KettleClient(MAC, PRODUCT_ID, null, kettle, scheduler, 200, 3);
+
+        CompletableFuture<String> name = client.nameAsync(0);
+        awaitState(client, KettleClient.SessionState.OPENING, 1000);
+        client.close();
+
+        try
+        {
+            name.get(500, TimeUnit.MILLISECONDS);
+            fail("A read waiting for a closed session must fail");
+        }
+        catch(ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof KettleException);
+        }
+
+        //longer than the connect deadline, which used to start the connect over
+        Thread.sleep(600);
+        assertFalse(kettle.isConnected());
+        assertFalse(client.isAuthenticated());
+        assertEquals(KettleClient.SessionState.CLOSED, client.getSessionState());
+    }
+
+    @Test
+    public void lateConnectOfClosedSessionIsIgnored() throws Exception
+    {
+        final AtomicInteger discovers = new AtomicInteger();
+        final AtomicReference<GattTransport.Callback> connected = new AtomicReference<>();
+        //takes the connect but never answers it, the test delivers the answer itself
+        SimulatedKettle kettle = new SimulatedKettle(MAC, PRODUCT_ID, scheduler)
+        {
+            @Override
+            public synchronized boolean connect(Callback callback)
+            {
+                connected.set(callback);
+                return true;
+            }
+
+            @Override
+            public synchronized boolean discoverServices()
+            {
+                discovers.incrementAndGet();
+                return super.discoverServices();
+            }
+        };
+        KettleClient client = new KettleClient(MAC, PRODUCT_ID, null, kettle, scheduler, 5000, 0);
+
+        client.nameAsync(0);
+        while(connected.get() == null)
+            Thread.sleep(2);
+        client.close();
+        awaitState(client, KettleClient.SessionState.CLOSED, 1000);
+
+        connected.get().onConnectionStateChange(GattTransport.GATT_SUCCESS, true);
+        Thread.sleep(100);
+        assertEquals(0, discovers.get());
+        assertEquals(KettleClient.SessionState.CLOSED, client.getSessionState());
+    }
+
+    @Test
+    public void replayRunsOnTheLoop() throws Exception
+    {
+        SimulatedKettle kettle = new SimulatedKettle(MAC, PRODUCT_ID, scheduler);
+        final KettleClient client = new KettleClient(MAC, PRODUCT_ID, null, kettle, scheduler, 200, 3);
+        final AtomicInteger offLoop = new AtomicInteger();
+        final CountDownLatch recorded = new CountDownLatch(2);
+        client.setHistory(new StatusHistory()
+        {
+            @Override
+            public void record(long time, byte[] frame)
+            {
+                if(!client.getEventLoop().inLoop())
+                    offLoop.incrementAndGet();
+                super.record(time, frame);
+                recorded.countDown();
+            }
+        });
+
+        //the caller's buffer is reused right away, as StatusJournal.replay does
+        byte[] frame = {1, 1, 0, 0, 100, 40, 0, 0, 0};
+        client.replay(1000, frame);
+        frame[5] = 41;
+        client.replay(2000, frame);
+        frame[5] = 99;
+
+        assertTrue(recorded.await(1, TimeUnit.SECONDS));
+        assertEquals(0, offLoop.get());
+        StatusHistory.Samples samples = new StatusHistory.Samples(4);
+        assertEquals(2, client.getHistory().read(0, Long.MAX_VALUE, samples));
+        assertEquals(40, samples.temperature[0]);
+        assertEquals(41, samples.temperature[1]);
+    }
+
+    @Test
+    public void sessionOpensAgainAfterCloseWhileOpening() throws Exception
+    {
+        SimulatedKettle kettle = new SimulatedKettle(MAC, PRODUCT_ID, scheduler, 20, 0, 0, 1);
+        KettleClient client = new KettleClient(MAC, PRODUCT_ID, null, kettle, scheduler, 200, 3);
+
+        client.nameAsync(0);
+        awaitState(client, KettleClient.SessionState.OPENING, 1000);
+        client.close();
+
+        assertEquals("MiKettle", client.nameAsync(0).get(2, TimeUnit.SECONDS));
+        assertTrue(kettle.isAuthenticated());
+        client.destroy();
+    }
+}
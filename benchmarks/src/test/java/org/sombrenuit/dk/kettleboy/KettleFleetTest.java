@@ -0,0 +1,104 @@
+package org.sombrenuit.dk.kettleboy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KettleFleetTest
+{
+    private static final byte PRODUCT_ID = (byte) 131;
+
+    private ScheduledExecutorService scheduler;
+
+    @Before
+    public void setUp()
+    {
+        scheduler = Executors.newScheduledThreadPool(2);
+    }
+
+    @After
+    public void tearDown()
+    {
+        scheduler.shutdownNow();
+    }
+
+    private static String mac(int i)
+    {
+        return String.format("A1:B2:C3:D4:E5:%02X", i);
+    }
+
+    @Test
+    public void revokeDuringOpeningDropsTheLink() throws Exception
+    {
+        SimulatedKettle kettle = new SimulatedKettle(mac(0), PRODUCT_ID, scheduler, 40, 0, 0, 1);
+        KettleClient client = new KettleClient(mac(0), PRODUCT_ID, null, kettle, scheduler, 200, 3);
+        KettleFleet fleet = new KettleFleet(1, scheduler);
+        fleet.setRotationInterval(60000);
+        fleet.add(client);
+        fleet.start();
+
+        KettleClientTest.awaitState(client, KettleClient.SessionState.OPENING, 1000);
+        fleet.remove(mac(0));
+
+        //well past the connect deadline and the retries a leaked session would go through
+        Thread.sleep(800);
+        assertFalse(kettle.isConnected());
+        assertEquals(KettleClient.SessionState.CLOSED, client.getSessionState());
+        assertEquals(0, fleet.getSlotsInUse());
+        fleet.stop();
+    }
+
+    @Test
+    public void idleStalenessIsBounded() throws Exception
+    {
+        int kettles = 10;
+        int slots = 4;
+        int heating = 3;
+        long rotation = 200;
+        KettleFleet fleet = new KettleFleet(slots, scheduler);
+        fleet.setRotationInterval(rotation);
+        List<SimulatedKettle> simulated = new ArrayList<>();
+        for(int i = 0; i < kettles; i++)
+        {
+            SimulatedKettle kettle = new SimulatedKettle(mac(i), PRODUCT_ID, scheduler, 5, 0, 0, i);
+            kettle.setNotifyInterval(50);
+            if(i < heating)
+                kettle.setStatus(1, 1, 100, 40, 0, 0);
+            simulated.add(kettle);
+            fleet.add(new KettleClient(mac(i), PRODUCT_ID, null, kettle, scheduler, 500, 3));
+        }
+        assertEquals(slots - 1, fleet.getMaxActive());
+
+        //7 idle kettles share the one slot the heating ones leave, n / r + 1 = 8 rotations
+        long bound = (kettles - heating + 1) * rotation;
+        fleet.start();
+        Thread.sleep(2 * bound);
+        long worst = 0;
+        for(int i = 0; i < 10; i++)
+        {
+            long staleness = fleet.getMaxStaleness();
+            assertTrue("A kettle never reported", staleness >= 0);
+            worst = Math.max(worst, staleness);
+            int connected = 0;
+            for(SimulatedKettle kettle : simulated)
+            {
+                if(kettle.isConnected())
+                    connected++;
+            }
+            assertTrue("More links than slots: " + connected, connected <= slots);
+            Thread.sleep(rotation);
+        }
+        fleet.stop();
+        //one rotation of slack for connecting and the first notification
+        assertTrue("Staleness " + worst + "ms over " + bound + "ms", worst < bound + rotation);
+    }
+}
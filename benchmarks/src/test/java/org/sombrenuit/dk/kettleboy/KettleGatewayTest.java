@@ -0,0 +1,106 @@
+package org.sombrenuit.dk.kettleboy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KettleGatewayTest
+{
+    private static final String MAC = "AA:BB:CC:DD:EE:01";
+    private static final String UNKNOWN = "11:22:33:44:55:66";
+    private static final byte PRODUCT_ID = (byte) 131;
+
+    private ScheduledExecutorService scheduler;
+    private SimulatedKettle kettle;
+    private KettleClient client;
+    private KettleGateway gateway;
+
+    @Before
+    public void setUp()
+    {
+        scheduler = Executors.newScheduledThreadPool(2);
+        kettle = new SimulatedKettle(MAC, PRODUCT_ID, scheduler);
+        kettle.setNotifyInterval(50);
+        client = new KettleClient(MAC, PRODUCT_ID, null, kettle, scheduler, 2000, 2);
+        gateway = new KettleGateway(new InetSocketAddress("127.0.0.1", 0));
+        gateway.add(client);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        gateway.stop();
+        client.destroy();
+        scheduler.shutdownNow();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void addressIsUnknownBeforeStart() throws Exception
+    {
+        gateway.getAddress();
+    }
+
+    @Test
+    public void roundTrip() throws Exception
+    {
+        kettle.setStatus(1, 1, 90, 41, 0, 0);
+        gateway.start();
+        GatewayClient status = new GatewayClient(gateway.getAddress());
+        try
+        {
+            assertEquals(Arrays.asList(MAC), status.list());
+
+            GatewayClient.Status snapshot = status.snapshot(MAC);
+            assertEquals(MAC, snapshot.mac);
+            assertEquals(41, snapshot.decode().getCurrentTemperature());
+            //no estimator on the client
+            assertEquals(-1, snapshot.etaMillis);
+
+            status.subscribe(MAC);
+            kettle.setStatus(1, 1, 90, 77, 0, 0);
+            GatewayClient.Status pushed = status.next();
+            for(int i = 0; i < 100 && pushed.decode().getCurrentTemperature() != 77; i++)
+                pushed = status.next();
+            assertEquals(77, pushed.decode().getCurrentTemperature());
+
+            //a snapshot never goes back behind a frame already pushed
+            GatewayClient.Status after = status.snapshot(MAC);
+            assertTrue(after.time >= pushed.time);
+            assertEquals(77, after.decode().getCurrentTemperature());
+            status.unsubscribe(MAC);
+        }
+        finally
+        {
+            status.close();
+        }
+    }
+
+    @Test
+    public void unknownKettleIsAnError() throws Exception
+    {
+        gateway.start();
+        GatewayClient status = new GatewayClient(gateway.getAddress());
+        try
+        {
+            status.snapshot(UNKNOWN);
+            fail("A kettle the gateway does not own must not have a snapshot");
+        }
+        catch(KettleException e)
+        {
+            assertEquals(UNKNOWN, e.getMac());
+        }
+        finally
+        {
+            status.close();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.sombrenuit.dk.kettleboy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MiBeaconTest
+{
+    //fe95 service data as the kettle (product 0x0083) advertises it: v3 frame with mac and object,
+    //counter 0x2a, mac AA:BB:CC:DD:EE:FF reversed, object 0x1005 of 2 bytes, power 1 at 43 degrees
+    private static final String HEATING = "5030 8300 2a ffeeddccbbaa 0510 02 012b";
+    //the same kettle switched off at 99 degrees, a capability byte ahead of the object
+    private static final String OFF_WITH_CAPABILITY = "7030 8300 2b ffeeddccbbaa 08 0510 02 0063";
+    //capability with io capability, 2 more bytes before the objects
+    private static final String IO_CAPABILITY = "7030 8300 2c ffeeddccbbaa 28 0100 0510 02 0150";
+    //another object ahead of the kettle status, it is skipped
+    private static final String TWO_OBJECTS = "5030 8300 2d ffeeddccbbaa 0a10 01 64 0510 02 0132";
+    //encrypted object payload, it cannot be read without the bind key
+    private static final String ENCRYPTED = "5830 8300 2e ffeeddccbbaa 9f5c1e2a40 000000 d1a2b3c4";
+
+    static byte[] hex(String text)
+    {
+        String digits = text.replace(" ", "");
+        byte[] data = new byte[digits.length() / 2];
+        for(int i = 0; i < data.length; i++)
+            data[i] = (byte) Integer.parseInt(digits.substring(2 * i, 2 * i + 2), 16);
+        return data;
+    }
+
+    @Test
+    public void kettleStatus()
+    {
+        MiBeacon beacon = new MiBeacon();
+        assertTrue(MiBeacon.parse(hex(HEATING), beacon));
+        assertEquals(3, beacon.getVersion());
+        assertFalse(beacon.isEncrypted());
+        assertEquals(0x0083, beacon.getProductId());
+        assertEquals(0x2a, beacon.getFrameCounter());
+        assertEquals(StatusJournal.macKey("AA:BB:CC:DD:EE:FF"), beacon.getMac());
+        assertTrue(beacon.hasKettleStatus());
+        assertEquals(1, beacon.getPower());
+        assertEquals(43, beacon.getTemperature());
+    }
+
+    @Test
+    public void capabilityBytesAreSkipped()
+    {
+        MiBeacon beacon = new MiBeacon();
+        assertTrue(MiBeacon.parse(hex(OFF_WITH_CAPABILITY), beacon));
+        assertTrue(beacon.hasKettleStatus());
+        assertEquals(0, beacon.getPower());
+        assertEquals(99, beacon.getTemperature());
+
+        assertTrue(MiBeacon.parse(hex(IO_CAPABILITY), beacon));
+        assertTrue(beacon.hasKettleStatus());
+        assertEquals(80, beacon.getTemperature());
+    }
+
+    @Test
+    public void otherObjectsAreSkipped()
+    {
+        MiBeacon beacon = new MiBeacon();
+        assertTrue(MiBeacon.parse(hex(TWO_OBJECTS), beacon));
+        assertTrue(beacon.hasKettleStatus());
+        assertEquals(1, beacon.getPower());
+        assertEquals(50, beacon.getTemperature());
+    }
+
+    @Test
+    public void encryptedFrameIsRecognisedNotRead()
+    {
+        MiBeacon beacon = new MiBeacon();
+        assertTrue(MiBeacon.parse(hex(ENCRYPTED), beacon));
+        assertTrue(beacon.isEncrypted());
+        assertEquals(StatusJournal.macKey("AA:BB:CC:DD:EE:FF"), beacon.getMac());
+        assertFalse(beacon.hasKettleStatus());
+    }
+
+    @Test
+    public void truncatedFramesAreRejected()
+    {
+        MiBeacon beacon = new MiBeacon();
+        byte[] full = hex(HEATING);
+        //header, mac and the object all cut short; a cut right between objects still parses
+        for(int length : new int[]{0, 3, 4, 6, 10, 12, 14, 15})
+        {
+            byte[] truncated = new byte[length];
+            System.arraycopy(full, 0, truncated, 0, length);
+            assertFalse("Accepted " + length + " bytes", MiBeacon.parse(truncated, beacon) && beacon.hasKettleStatus());
+        }
+        assertFalse(MiBeacon.parse(null, beacon));
+        assertFalse(MiBeacon.parse(hex("5030 8300"), beacon));
+        assertFalse(MiBeacon.parse(hex("5030 8300 2a ffeedd"), beacon));
+        assertFalse(MiBeacon.parse(hex("5030 8300 2a ffeeddccbbaa 0510 09 00"), beacon));
+        assertFalse(MiBeacon.parse(hex("7030 8300 2a ffeeddccbbaa"), beacon));
+    }
+
+    @Test
+    public void parsingClearsTheLastFrame()
+    {
+        MiBeacon beacon = new MiBeacon();
+        assertTrue(MiBeacon.parse(hex(HEATING), beacon));
+        assertFalse(MiBeacon.parse(hex("5030 8300"), beacon));
+        assertFalse(beacon.hasKettleStatus());
+        assertEquals(0, beacon.getMac());
+    }
+}
@@ -0,0 +1,170 @@
+package org.sombrenuit.dk.kettleboy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+
+public class StatusDeltaFilterTest
+{
+    private static final long WINDOW = 200;
+
+    private ScheduledExecutorService scheduler;
+    private final List<Integer> masks = new ArrayList<>();
+    private final List<KettleStatus> statuses = new ArrayList<>();
+
+    private final IOnStatusChanged listener = new IOnStatusChanged()
+    {
+        @Override
+        public void onStatusChanged(int changed, KettleStatus status)
+        {
+            synchronized (masks)
+            {
+                masks.add(changed);
+                statuses.add(status);
+            }
+        }
+    };
+
+    //the flush runs on the scheduler thread, no listener pool to wait for
+    private static final Executor DIRECT = new Executor()
+    {
+        @Override
+        public void execute(Runnable command)
+        {
+            command.run();
+        }
+    };
+
+    @Before
+    public void setUp()
+    {
+        scheduler = Executors.newScheduledThreadPool(2);
+    }
+
+    @After
+    public void tearDown()
+    {
+        scheduler.shutdownNow();
+    }
+
+    static byte[] frame(int action, int mode, int set, int current, int kwType, int kwTime)
+    {
+        return new byte[]{(byte) action, (byte) mode, 0x00, 0x00, (byte) set, (byte) current,
+                (byte) kwType, (byte) (kwTime >> 8), (byte) kwTime};
+    }
+
+    private int events()
+    {
+        synchronized (masks)
+        {
+            return masks.size();
+        }
+    }
+
+    private int mask(int event)
+    {
+        synchronized (masks)
+        {
+            return masks.get(event);
+        }
+    }
+
+    private KettleStatus status(int event)
+    {
+        synchronized (masks)
+        {
+            return statuses.get(event);
+        }
+    }
+
+    @Test
+    public void changeMasks()
+    {
+        StatusDeltaFilter filter = new StatusDeltaFilter(listener, scheduler, 0, DIRECT);
+        filter.onFrame(frame(0, 255, 90, 20, 0, 0));
+        assertEquals(1, events());
+        assertEquals(KettleStatus.CHANGED_ALL, mask(0));
+
+        //the same status again, and bytes the status does not hold
+        filter.onFrame(frame(0, 255, 90, 20, 0, 0));
+        byte[] padding = frame(0, 255, 90, 20, 0, 0);
+        padding[2] = 7;
+        filter.onFrame(padding);
+        assertEquals(1, events());
+
+        filter.onFrame(frame(0, 255, 90, 21, 0, 0));
+        assertEquals(KettleStatus.CHANGED_CURRENT_TEMPERATURE, mask(1));
+        assertEquals(21, status(1).getCurrentTemperature());
+
+        filter.onFrame(frame(1, 255, 90, 21, 0, 30));
+        assertEquals(KettleStatus.CHANGED_ACTION | KettleStatus.CHANGED_KW_TIME, mask(2));
+
+        filter.onFrame(frame(1, 1, 95, 21, 1, 30));
+        assertEquals(KettleStatus.CHANGED_MODE | KettleStatus.CHANGED_SET_TEMPERATURE | KettleStatus.CHANGED_KW_TYPE, mask(3));
+
+        //too short to hold a status
+        filter.onFrame(new byte[]{2, 2});
+        filter.onFrame(null);
+        assertEquals(4, events());
+        assertEquals(6, filter.getFrames());
+        assertEquals(4, filter.getEvents());
+    }
+
+    @Test
+    public void resetReportsEveryField()
+    {
+        StatusDeltaFilter filter = new StatusDeltaFilter(listener, scheduler, 0, DIRECT);
+        filter.onFrame(frame(0, 255, 90, 20, 0, 0));
+        filter.reset();
+        filter.onFrame(frame(0, 255, 90, 20, 0, 0));
+        assertEquals(2, events());
+        assertEquals(KettleStatus.CHANGED_ALL, mask(1));
+    }
+
+    @Test
+    public void windowCoalescesIntoTheLatestFrame() throws Exception
+    {
+        StatusDeltaFilter filter = new StatusDeltaFilter(listener, scheduler, WINDOW, DIRECT);
+        filter.onFrame(frame(1, 1, 90, 20, 0, 0));
+        assertEquals(1, events());
+
+        //inside the window, only the last frame and the union against the delivered one count
+        filter.onFrame(frame(1, 1, 90, 21, 0, 0));
+        filter.onFrame(frame(1, 1, 90, 22, 0, 0));
+        filter.onFrame(frame(1, 1, 95, 23, 0, 0));
+        assertEquals(1, events());
+
+        Thread.sleep(2 * WINDOW);
+        assertEquals(2, events());
+        assertEquals(KettleStatus.CHANGED_CURRENT_TEMPERATURE | KettleStatus.CHANGED_SET_TEMPERATURE, mask(1));
+        assertEquals(23, status(1).getCurrentTemperature());
+        assertEquals(95, status(1).getSetTemperature());
+        assertEquals(4, filter.getFrames());
+        assertEquals(2, filter.getEvents());
+    }
+
+    @Test
+    public void changeUndoneInsideTheWindowIsDropped() throws Exception
+    {
+        StatusDeltaFilter filter = new StatusDeltaFilter(listener, scheduler, WINDOW, DIRECT);
+        filter.onFrame(frame(1, 1, 90, 20, 0, 0));
+        filter.onFrame(frame(1, 1, 90, 21, 0, 0));
+        filter.onFrame(frame(1, 1, 90, 20, 0, 0));
+
+        Thread.sleep(2 * WINDOW);
+        assertEquals(1, events());
+
+        //the window is long over, the next change goes out right away
+        filter.onFrame(frame(1, 1, 90, 22, 0, 0));
+        assertEquals(2, events());
+        assertEquals(KettleStatus.CHANGED_CURRENT_TEMPERATURE, mask(1));
+    }
+}
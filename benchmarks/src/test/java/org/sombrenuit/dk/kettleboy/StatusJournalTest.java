@@ -0,0 +1,167 @@
+package org.sombrenuit.dk.kettleboy;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class StatusJournalTest
+{
+    private static final long MAC = StatusJournal.macKey("AA:BB:CC:DD:EE:FF");
+    private static final long OTHER_MAC = StatusJournal.macKey("AA:BB:CC:DD:EE:01");
+    //room for 10 records after the header
+    private static final long SEGMENT_SIZE = StatusJournal.HEADER_SIZE + 10 * StatusJournal.RECORD_SIZE;
+    private static final int RING_RECORDS = 64;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static class Recorded
+    {
+        final long mac;
+        final long time;
+        final byte[] frame;
+
+        Recorded(long mac, long time, byte[] frame)
+        {
+            this.mac = mac;
+            this.time = time;
+            this.frame = frame.clone();
+        }
+    }
+
+    //the time tells the records apart, the frame carries it in the current temperature
+    private static byte[] frame(long time)
+    {
+        return StatusDeltaFilterTest.frame(1, 1, 90, (int) (time % 100), 0, 0);
+    }
+
+    private static void append(StatusJournal journal, long from, int count)
+    {
+        for(long time = from; time < from + count; time++)
+            journal.append(time % 2 == 0 ? MAC : OTHER_MAC, time, frame(time));
+    }
+
+    private static List<Recorded> replay(File directory) throws Exception
+    {
+        final List<Recorded> records = new ArrayList<>();
+        long replayed = StatusJournal.replay(directory, new IOnJournalFrame()
+        {
+            @Override
+            public void onFrame(long mac, long time, byte[] frame)
+            {
+                records.add(new Recorded(mac, time, frame));
+            }
+        }, 0);
+        assertEquals(records.size(), replayed);
+        return records;
+    }
+
+    private static void assertRecords(List<Recorded> records, long... times)
+    {
+        assertEquals(times.length, records.size());
+        for(int i = 0; i < times.length; i++)
+        {
+            Recorded record = records.get(i);
+            assertEquals(times[i], record.time);
+            assertEquals(times[i] % 2 == 0 ? MAC : OTHER_MAC, record.mac);
+            assertArrayEquals(frame(times[i]), record.frame);
+        }
+    }
+
+    private static long[] range(long from, int count)
+    {
+        long[] times = new long[count];
+        for(int i = 0; i < count; i++)
+            times[i] = from + i;
+        return times;
+    }
+
+    @Test
+    public void macKeyRoundTrip()
+    {
+        assertEquals(0xAABBCCDDEEFFL, MAC);
+        assertEquals("AA:BB:CC:DD:EE:FF", StatusJournal.macString(MAC));
+        assertEquals("AA:BB:CC:DD:EE:01", StatusJournal.macString(OTHER_MAC));
+    }
+
+    @Test
+    public void appendFlushReplayAcrossSegments() throws Exception
+    {
+        File directory = folder.newFolder();
+        StatusJournal journal = new StatusJournal(directory, SEGMENT_SIZE, RING_RECORDS, 0);
+        append(journal, 0, 25);
+        journal.append(MAC, 99, new byte[]{1, 2});
+        journal.flush();
+        assertEquals(25, journal.getAppended());
+        assertEquals(0, journal.getDropped());
+        journal.close();
+
+        assertEquals(3, StatusJournal.segments(directory).length);
+        assertRecords(replay(directory), range(0, 25));
+    }
+
+    @Test
+    public void resumeAppendsAfterTheLastRecord() throws Exception
+    {
+        File directory = folder.newFolder();
+        StatusJournal journal = new StatusJournal(directory, SEGMENT_SIZE, RING_RECORDS, 0);
+        append(journal, 0, 5);
+        journal.close();
+
+        journal = new StatusJournal(directory, SEGMENT_SIZE, RING_RECORDS, 0);
+        append(journal, 5, 8);
+        journal.close();
+
+        assertEquals(2, StatusJournal.segments(directory).length);
+        assertRecords(replay(directory), range(0, 13));
+    }
+
+    @Test
+    public void tornCommitByteEndsTheJournal() throws Exception
+    {
+        File directory = folder.newFolder();
+        StatusJournal journal = new StatusJournal(directory, SEGMENT_SIZE, RING_RECORDS, 0);
+        append(journal, 0, 6);
+        journal.close();
+
+        //record 3 did not reach the disk completely, the ones behind it did
+        File segment = StatusJournal.segments(directory)[0];
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try
+        {
+            raf.seek(StatusJournal.HEADER_SIZE + 4 * StatusJournal.RECORD_SIZE - 1);
+            raf.write(0);
+        }
+        finally
+        {
+            raf.close();
+        }
+        assertRecords(replay(directory), 0, 1, 2);
+
+        //the journal goes on where the last complete record ended, nothing from behind the tear comes back
+        journal = new StatusJournal(directory, SEGMENT_SIZE, RING_RECORDS, 0);
+        append(journal, 10, 1);
+        journal.close();
+        assertRecords(replay(directory), 0, 1, 2, 10);
+    }
+
+    @Test
+    public void oldSegmentsAreRetired() throws Exception
+    {
+        File directory = folder.newFolder();
+        StatusJournal journal = new StatusJournal(directory, SEGMENT_SIZE, RING_RECORDS, 2);
+        append(journal, 0, 50);
+        journal.close();
+
+        assertEquals(2, StatusJournal.segments(directory).length);
+        assertRecords(replay(directory), range(30, 20));
+    }
+}